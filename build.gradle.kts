@@ -41,4 +41,6 @@ dependencies {
     runtimeOnly(group = "org.pepsoft.worldpainter", name = "WPGUI", version = "2.26.1")
     runtimeOnly("us.dynmap:DynmapCoreAPI:local")
     compileOnly(group = "org.pepsoft.worldpainter", name = "WPCore", version = "2.26.1")
+    testImplementation(group = "org.pepsoft.worldpainter", name = "WPCore", version = "2.26.1")
+    testImplementation(group = "junit", name = "junit", version = "4.13.2")
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Recycles packed block arrays of cubes between columns of a pooled read-only visit, see
+ * {@link CubicChunkStore#visitChunksPooled}. Not thread safe.
+ */
+final class BlockArrayPool {
+
+    // free arrays kept for each size, anything above that is left to the garbage collector
+    private static final int MAX_FREE_PER_SIZE = 4096;
+
+    // by amount of bits per block, array length is bits * 64
+    private final ArrayDeque<long[]>[] free;
+
+    @SuppressWarnings("unchecked")
+    BlockArrayPool() {
+        free = new ArrayDeque[Integer.SIZE + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @param bits amount of bits per block
+     *
+     * @return a zeroed array for 4096 blocks
+     */
+    long[] take(int bits) {
+        long[] array = free[bits].pollLast();
+        if (array == null) {
+            return new long[bits * (4096 / 64)];
+        }
+        Arrays.fill(array, 0);
+        return array;
+    }
+
+    void release(long[] array) {
+        ArrayDeque<long[]> arrays = free[array.length / (4096 / 64)];
+        if (arrays.size() < MAX_FREE_PER_SIZE) {
+            arrays.addLast(array);
+        }
+    }
+}
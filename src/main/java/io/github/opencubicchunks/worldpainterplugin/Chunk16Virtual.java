@@ -1,9 +1,15 @@
 package io.github.opencubicchunks.worldpainterplugin;
 
-import static java.util.stream.Collectors.toCollection;
 import static org.pepsoft.minecraft.Constants.TAG_LEVEL;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.ObjectIntIdentityHashMap;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import org.jnbt.ByteArrayTag;
 import org.jnbt.ByteTag;
 import org.jnbt.CompoundTag;
 import org.jnbt.DoubleTag;
@@ -34,6 +40,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -47,25 +54,65 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
     }
     private static final boolean DEBUG = System.getProperty("cubicchunks.debug", "false").equalsIgnoreCase("true");
     private static final Logger LOGGER = LoggerFactory.getLogger(Chunk16Virtual.class);
+    private static final EmptyCubeMode EMPTY_CUBE_MODE = readEmptyCubeMode();
+    private static final ThreadLocal<int[]> OPACITY_IDS = ThreadLocal.withInitial(() -> new int[4096]);
+    // rough sizes of parsed entities and tile entities, their NBT is kept with them
+    private static final int ENTITY_BYTES = 1024;
+    private static final int TILE_ENTITY_BYTES = 512;
 
     private final int columnX;
     private final int columnZ;
     private final CubeMap cubes;
 
     private final int[] yMax = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+    // highest non-air block for each x/z, Coords.NO_HEIGHT if there is none. Built lazily for loaded columns
+    private final int[] topBlocks = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+    private boolean topBlocksValid;
 
     private byte[] biomes = new byte[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
     private boolean storing3dBiomes = false;
+    // 3D biomes by cube Y, kept separately from cubes so that biomes never create cubes.
+    // Value 255 means the segment was never set and uses the 2D biome, cubes where no segment was set have no array
+    private final IntObjectHashMap<byte[]> biomes3d = new IntObjectHashMap<>();
 
     private final List<Entity> entities = new ArrayList<>();
     private final List<TileEntity> tileEntities = new ArrayList<>();
+    // entities and tile entities by the cube they are in, only while the column is serialized, see serialize()
+    private IntObjectHashMap<List<Entity>> entitiesByCube;
+    private IntObjectHashMap<List<TileEntity>> tileEntitiesByCube;
+    // entities and tile entities of loaded cubes stay as NBT in the cube tags until they are requested
+    private boolean entitiesLoaded;
+    private boolean tileEntitiesLoaded;
     private final int minHeight, maxHeight;
 
     private final boolean readOnly;
     private ColumnPopulationState populationState = ColumnPopulationState.UNSET;
+    // cached result of the isTerrainPopulated() heuristic, UNSET when it needs to be found again.
+    // Reset when a cube is added or removed, or a cube becomes empty or non-empty
+    private ColumnPopulationState populatedHeuristic = ColumnPopulationState.UNSET;
     private boolean forceLightPopulated;
     private long inhabitedTime;
 
+    // streaming window mode, see setStreamingWindow(). Without a cube source, all cubes are always decoded
+    private CubeSource cubeSource;
+    private int maxLoadedCubes;
+    // cubes that exist in the cube source, but are not decoded
+    private IntHashSet evictedCubes;
+    private long cubeAccessCounter;
+    // block arrays are taken from here during pooled visits, see releaseToPool()
+    private final BlockArrayPool blockArrayPool;
+
+    private static EmptyCubeMode readEmptyCubeMode() {
+        String value = System.getProperty("cubicchunks.emptyCubes", EmptyCubeMode.ALWAYS.name());
+        try {
+            return EmptyCubeMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown cubicchunks.emptyCubes value {}, expected one of {}, using {}",
+                    value, Arrays.toString(EmptyCubeMode.values()), EmptyCubeMode.ALWAYS);
+            return EmptyCubeMode.ALWAYS;
+        }
+    }
+
     public Chunk16Virtual(int columnX, int columnZ, int minHeight, int maxHeight, EditMode editMode) {
         super(new CompoundTag(TAG_LEVEL, new HashMap<>()));
         this.columnX = columnX;
@@ -74,9 +121,19 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         this.minHeight = minHeight;
         this.maxHeight = maxHeight;
         this.readOnly = editMode == EditMode.READONLY;
+        this.blockArrayPool = null;
+        Arrays.fill(topBlocks, Coords.NO_HEIGHT);
+        this.topBlocksValid = true;
+        this.entitiesLoaded = true;
+        this.tileEntitiesLoaded = true;
     }
 
     public Chunk16Virtual(SerializedColumn serialized, int columnX, int columnZ, int minHeight, int maxHeight, EditMode editMode) {
+        this(serialized, columnX, columnZ, minHeight, maxHeight, editMode, null);
+    }
+
+    Chunk16Virtual(SerializedColumn serialized, int columnX, int columnZ, int minHeight, int maxHeight, EditMode editMode,
+            BlockArrayPool blockArrayPool) {
         super(serialized.getColumnLevel());
         this.columnX = columnX;
         this.columnZ = columnZ;
@@ -84,13 +141,207 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         this.minHeight = minHeight;
         this.maxHeight = maxHeight;
         this.readOnly = editMode == EditMode.READONLY;
+        this.blockArrayPool = blockArrayPool;
 
         loadColumnData();
-        serialized.cubeTags.forEach((cubeY, tag) -> loadCube(new Cube16(this, tag)));
+        for (ObjectCursor<CompoundTag> tag : serialized.cubeTags.values()) {
+            loadCube(new Cube16(this, tag.value));
+        }
     }
 
     private void loadCube(Cube16 cube) {
+        if (cubeSource != null) {
+            makeRoomForCube();
+            cube.lastAccess = ++cubeAccessCounter;
+        }
         cubes.put(cube);
+        populatedHeuristic = ColumnPopulationState.UNSET;
+    }
+
+    /**
+     * Switches this column to streaming window mode, where at most the given amount of cubes is decoded at the same
+     * time. When another cube is needed, the least recently used one is evicted, after writing it to the cube source
+     * if it was changed. Evicted cubes are read from the cube source again when they are accessed, so memory used by
+     * a column doesn't depend on the height of the world.
+     *
+     * <p>Operations on the whole column, like saving it or finding the highest block, go through all cubes, reading
+     * evicted cubes again one at a time.
+     *
+     * @param source where evicted cubes are read from and written to
+     * @param maxLoadedCubes the maximum amount of decoded cubes
+     * @param storedCubeYs Y positions of all cubes of this column that exist in the source
+     */
+    void setStreamingWindow(CubeSource source, int maxLoadedCubes, IntHashSet storedCubeYs) {
+        this.cubeSource = source;
+        this.maxLoadedCubes = Math.max(1, maxLoadedCubes);
+        this.evictedCubes = new IntHashSet(storedCubeYs.size());
+        for (IntCursor y : storedCubeYs) {
+            if (cubes.get(y.value) == null) {
+                evictedCubes.add(y.value);
+            }
+        }
+        makeRoomForCube();
+    }
+
+    /**
+     * Drops decoded data of a cube, writing it to the cube source first if it was changed. Only possible in streaming
+     * window mode, the cube is read again when accessed.
+     *
+     * @param cubeY y position of the cube
+     */
+    public void evictCube(int cubeY) {
+        if (cubeSource == null) {
+            throw new IllegalStateException("Cubes can only be evicted in streaming window mode");
+        }
+        Cube16 cube = cubes.get(cubeY);
+        if (cube == null) {
+            return;
+        }
+        if (!readOnly && needsWrite(cube)) {
+            // the exact height map is only known when all cubes are visited, which may need evicting this one first.
+            // The one read from the column is close enough, and Cubic Chunks adds the cube to the opacity index again
+            int[] heightMap = new int[yMax.length];
+            for (int i = 0; i < heightMap.length; i++) {
+                heightMap[i] = yMax[i] - 1;
+            }
+            cubeSource.saveCube(columnX, cubeY, columnZ, untracked(cube.toNBT(heightMap)));
+            cube.modified = false;
+        }
+        cubes.remove(cubeY);
+        evictedCubes.add(cubeY);
+    }
+
+    /**
+     * Drops a cube from this column in memory, together with its entities, tile entities and 3D biomes, so that it's
+     * not written when the column is saved.
+     *
+     * <p>This doesn't delete anything from the chunk store. A cube that was already stored is read again the next
+     * time the column is loaded, except that cubes 0 to 15 are overwritten with empty cubes when the empty cube mode
+     * writes missing cubes.
+     *
+     * @param cubeY y position of the cube
+     *
+     * @return true if the cube existed
+     */
+    public boolean removeCube(int cubeY) {
+        if (readOnly) {
+            return false;
+        }
+        boolean removed = cubes.remove(cubeY) != null;
+        if (evictedCubes != null) {
+            removed |= evictedCubes.remove(cubeY);
+        }
+        if (removed) {
+            // entities that are not loaded yet are only in the tag of the removed cube
+            if (entitiesLoaded) {
+                entities.removeIf(entity -> getCubeY(entity) == cubeY);
+            }
+            if (tileEntitiesLoaded) {
+                tileEntities.removeIf(tileEntity -> getCubeY(tileEntity) == cubeY);
+            }
+            biomes3d.remove(cubeY);
+            topBlocksValid = false;
+            populatedHeuristic = ColumnPopulationState.UNSET;
+        }
+        return removed;
+    }
+
+    private void makeRoomForCube() {
+        while (cubes.size() >= maxLoadedCubes) {
+            Cube16 oldest = null;
+            for (Cube16 cube : cubes.array()) {
+                if (cube != null && (oldest == null || cube.lastAccess < oldest.lastAccess)) {
+                    oldest = cube;
+                }
+            }
+            evictCube(oldest.getY());
+        }
+    }
+
+    /**
+     * @return true if the cube has changes that are not in the cube source yet
+     */
+    private boolean needsWrite(Cube16 cube) {
+        // once entities are requested, they may change without the cube knowing
+        return cube.modified
+                || (entitiesLoaded && (!getEntitiesInCube(cube.getY()).isEmpty() || !cube.getListSafe("Entities").isEmpty()))
+                || (tileEntitiesLoaded && (!getTileEntitiesInCube(cube.getY()).isEmpty() || !cube.getListSafe("TileEntities").isEmpty()));
+    }
+
+    /**
+     * @return Y positions of all cubes in order of increasing Y, including evicted cubes. {@link #getCube(int)} may
+     * still return null for evicted cubes that turn out to be missing from the cube source
+     */
+    private int[] getCubeYs() {
+        Cube16[] array = cubes.array();
+        IntArrayList cubeYs = new IntArrayList(cubes.size() + (evictedCubes == null ? 0 : evictedCubes.size()));
+        for (Cube16 cube : array) {
+            if (cube != null) {
+                cubeYs.add(cube.getY());
+            }
+        }
+        if (evictedCubes == null || evictedCubes.isEmpty()) {
+            return cubeYs.toArray();
+        }
+        for (IntCursor y : evictedCubes) {
+            cubeYs.add(y.value);
+        }
+        int[] sorted = cubeYs.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return rough amount of heap memory used by this column and its decoded cubes, including NBT data they keep
+     */
+    public long estimatedBytes() {
+        // the column object, its NBT tag, and the height map, top block and biome arrays
+        long bytes = 256 + 3 * (16 + 256 * (long) Integer.BYTES) + (16 + 256);
+        Cube16[] array = cubes.array();
+        bytes += 16 + array.length * 8L;
+        for (Cube16 cube : array) {
+            if (cube != null) {
+                bytes += cube.estimatedBytes();
+            }
+        }
+        bytes += biomes3d.size() * (48L + 16 + Coords.BIOMES_PER_CUBE);
+        if (entitiesLoaded) {
+            bytes += entities.size() * (long) ENTITY_BYTES;
+        }
+        if (tileEntitiesLoaded) {
+            bytes += tileEntities.size() * (long) TILE_ENTITY_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives block arrays of all cubes back to the pool this column was loaded with. After that, the column reads as
+     * air, and must not be used anymore.
+     */
+    void releaseToPool() {
+        if (blockArrayPool == null) {
+            return;
+        }
+        for (Cube16 cube : cubes.array()) {
+            if (cube != null && cube.blocks != null) {
+                blockArrayPool.release(cube.blocks);
+                cube.blocks = null;
+                cube.bits = 0;
+                cube.nonAirCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads and writes cubes of columns in streaming window mode
+     */
+    interface CubeSource {
+        /**
+         * @return the cube tag, or null if the cube doesn't exist
+         */
+        CompoundTag loadCube(int cubeX, int cubeY, int cubeZ);
+
+        void saveCube(int cubeX, int cubeY, int cubeZ, CompoundTag tag);
     }
 
     //======================================
@@ -126,8 +377,8 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
                 for (int i = 0; i < yMax.length; i++) {
                     in.skipBytes(Integer.BYTES);// skip yMin
                     this.yMax[i] = in.readInt() + 1;
-                    // skip the opacity index, we don't need it, and we are going to set the isSurfaceTracked
-                    // bit in cubes to false to rebuild it
+                    // skip the segments, the whole opacity index is rebuilt from block data when the column is
+                    // saved, and cubes are written as surface tracked
                     int segmentCount = in.readUnsignedShort();
                     in.skipBytes(segmentCount * Integer.BYTES);
                 }
@@ -138,22 +389,165 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
     }
 
     public SerializedColumn serialize() {
-        Map<Integer, CompoundTag> tags = new HashMap<>(cubes.array().length * 2);
+        // entities and tile entities may have moved since they were added, so they are grouped by their current
+        // position once for all cubes
+        entitiesByCube = groupByCube(entities, Chunk16Virtual::getCubeY);
+        tileEntitiesByCube = groupByCube(tileEntities, Chunk16Virtual::getCubeY);
+        try {
+            return serializeCubes();
+        } finally {
+            entitiesByCube = null;
+            tileEntitiesByCube = null;
+        }
+    }
+
+    private SerializedColumn serializeCubes() {
+        OpacityIndex opacityIndex = buildOpacityIndex();
+        IntObjectHashMap<CompoundTag> tags = new IntObjectHashMap<>(cubes.size() + 16);
         for (Cube16 cube : cubes.array()) {
-            if (cube != null) {
-                tags.put(cube.getY(), cube.toNBT());
+            // in streaming window mode, unchanged cubes are already in the chunk store
+            if (cube != null && (cubeSource == null || needsWrite(cube))) {
+                tags.put(cube.getY(), cube.toNBT(opacityIndex.yMax));
+                cube.modified = false;
             }
         }
-        for (int i = 0; i < 16; i++) {
-            if (!tags.containsKey(i)) {
-                tags.put(i, new Cube16(this, i).toNBT());
+        if (EMPTY_CUBE_MODE == EmptyCubeMode.NEVER) {
+            return new SerializedColumn(toNBT(opacityIndex), tags);
+        }
+        int minCubeY = 0;
+        if (EMPTY_CUBE_MODE == EmptyCubeMode.CONTENT_BELOW) {
+            minCubeY = Integer.MAX_VALUE;
+            for (int cubeY : getCubeYs()) {
+                Cube16 cube = getCube(cubeY);
+                if (cube != null && !cube.isEmpty()) {
+                    minCubeY = cubeY + 1;
+                    break;
+                }
             }
         }
-        return new SerializedColumn(toNBT(), tags);
+        // synthetic cubes are cubes 0-15, and cubes with only 3D biomes, as setting biomes never creates cubes
+        IntArrayList syntheticCubeYs = new IntArrayList(16 + biomes3d.size());
+        for (int i = Math.max(0, minCubeY); i < 16; i++) {
+            syntheticCubeYs.add(i);
+        }
+        for (IntObjectCursor<byte[]> cubeBiomes : biomes3d) {
+            if (cubeBiomes.key >= minCubeY && (cubeBiomes.key < 0 || cubeBiomes.key >= 16) && hasBiomes(cubeBiomes.value)) {
+                syntheticCubeYs.add(cubeBiomes.key);
+            }
+        }
+        IntArrayList emptyCubeYs = new IntArrayList(16);
+        IntArrayList biomeCubeYs = new IntArrayList();
+        for (IntCursor y : syntheticCubeYs) {
+            int i = y.value;
+            if (cubes.get(i) != null || (evictedCubes != null && evictedCubes.contains(i)) || tags.containsKey(i)) {
+                continue;
+            }
+            if (!getEntitiesInCube(i).isEmpty() || !getTileEntitiesInCube(i).isEmpty()) {
+                tags.put(i, new Cube16(this, i).toNBT(opacityIndex.yMax));
+            } else if (biomes3d.containsKey(i)) {
+                biomeCubeYs.add(i);
+            } else {
+                emptyCubeYs.add(i);
+            }
+        }
+        if (emptyCubeYs.isEmpty() && biomeCubeYs.isEmpty()) {
+            return new SerializedColumn(toNBT(opacityIndex), tags);
+        }
+        CompoundTag emptyCubeTag = new Cube16(this, emptyCubeYs.isEmpty() ? biomeCubeYs.get(0) : emptyCubeYs.get(0))
+                .toNBT(opacityIndex.yMax);
+        for (IntCursor y : biomeCubeYs) {
+            tags.put(y.value, withBiomes(emptyCubeTag, y.value, getCubeBiomesForWrite(y.value)));
+        }
+        return new SerializedColumn(toNBT(opacityIndex), tags, emptyCubeYs, emptyCubeYs.isEmpty() ? null : emptyCubeTag);
+    }
+
+    /**
+     * Makes a cube tag that is the same as an empty cube tag except for the Y position and biomes. Only the changed
+     * tags are copied, the block and light arrays are shared with the empty cube.
+     */
+    @SuppressWarnings("unchecked")
+    private static CompoundTag withBiomes(CompoundTag emptyCubeTag, int cubeY, byte[] cubeBiomes) {
+        CompoundTag emptyLevel = (CompoundTag) emptyCubeTag.getTag("Level");
+        ListTag<CompoundTag> emptySections = (ListTag<CompoundTag>) emptyLevel.getTag("Sections");
+        CompoundTag section = new CompoundTag("", new HashMap<>(emptySections.getValue().get(0).getValue()));
+        section.setTag("Biomes3D", new ByteArrayTag("Biomes3D", cubeBiomes));
+        section.setTag("Biomes", new ByteArrayTag("Biomes", toOldBiomeArray(cubeBiomes)));
+        CompoundTag level = new CompoundTag("Level", new HashMap<>(emptyLevel.getValue()));
+        level.setTag("y", new IntTag("y", cubeY));
+        level.setTag("Sections", new ListTag<>("Sections", CompoundTag.class, Collections.singletonList(section)));
+        CompoundTag cubeNbt = new CompoundTag("", new HashMap<>());
+        cubeNbt.setTag("Level", level);
+        return cubeNbt;
+    }
+
+    private static byte[] toOldBiomeArray(byte[] biomes) {
+        byte[] old = new byte[8*8];
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                for (int z = 0; z < 4; z++) {
+                    old[getOldBiomeAddress(x << 1 | (y & 1), z << 1 | ((y >> 1) & 1))] = biomes[Coords.getBiomeAddress3d(x, y, z)];
+                }
+            }
+        }
+        return old;
+    }
+
+    private static int getOldBiomeAddress(int biomeX, int biomeZ) {
+        return biomeX << 3 | biomeZ;
+    }
+
+    /**
+     * @return true if any segment has a 3D biome set
+     */
+    private static boolean hasBiomes(byte[] cubeBiomes) {
+        for (byte biome : cubeBiomes) {
+            if (biome != (byte) 255) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the Cubic Chunks opacity index of this column from block data, so that the server doesn't have to
+     * rebuild it when the column is first loaded.
+     */
+    private OpacityIndex buildOpacityIndex() {
+        OpacityIndex index = new OpacityIndex();
+        int[] ids = OPACITY_IDS.get();
+        // iterating in order of increasing Y, cubes that don't exist are transparent
+        for (int cubeY : getCubeYs()) {
+            Cube16 cube = getCube(cubeY);
+            if (cube == null || cube.isEmpty()) {
+                continue;
+            }
+            boolean[] opaque = new boolean[cube.id2material.size()];
+            boolean anyOpaque = false;
+            for (int id = 0; id < opaque.length; id++) {
+                opaque[id] = cube.id2material.get(id).opacity > 0;
+                anyOpaque |= opaque[id];
+            }
+            if (!anyOpaque) {
+                continue;
+            }
+            Cube16.unpackIds(cube.blocks, cube.bits, ids);
+            int minBlockY = Coords.cubeToMinBlock(cube.getY());
+            for (int idx = 0; idx < 4096; idx++) {
+                if (opaque[ids[idx]]) {
+                    // index is x | z << 4 | y << 8
+                    index.addOpaque(idx & 0xFF, minBlockY + (idx >>> 8));
+                }
+            }
+        }
+        return index;
     }
 
     @Override
     public CompoundTag toNBT() {
+        return toNBT(buildOpacityIndex());
+    }
+
+    private CompoundTag toNBT(OpacityIndex opacityIndex) {
         setInt("x", getxPos());
         setInt("z", getzPos());
         setInt("v", 1);
@@ -163,9 +557,9 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         if (storing3dBiomes) {
             byte[] newBiomes = biomes.clone();
             for (int i = 0; i < this.yMax.length; i++) {
-                int biome = getOrMakeSection(yMax[i] + 1).getBiome(
+                int biome = get3DBiomeOrUnset(
                         Coords.blockToBiome3d(Coords.index2dToX(i)),
-                        Coords.blockToLocalBiome3d(yMax[i] + 1),
+                        Coords.blockToBiome3d(yMax[i] + 1),
                         Coords.blockToBiome3d(Coords.index2dToZ(i)));
                 if (biome != 255) {
                     newBiomes[i] = (byte) biome;
@@ -176,19 +570,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             setByteArray("Biomes", biomes);
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
-        try (DataOutputStream out = new DataOutputStream(baos)) {
-            for (int height : yMax) {
-                // yMin 0, we can be almost sure about that. TODO: find a way to generate the right value here
-                out.writeInt(0);
-                out.writeInt(height);
-                // segment count 0, let them be regenerated
-                out.writeShort(0);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error writing column", e);
-        }
-        setByteArray("OpacityIndex", baos.toByteArray());
+        setByteArray("OpacityIndex", opacityIndex.toByteArray());
 
         CompoundTag columnNbt = new CompoundTag("", new HashMap<>());
         columnNbt.setTag("Level", super.toNBT());
@@ -201,7 +583,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
     private Cube16 getOrMakeSection(int blockY) {
         int cubeY = Coords.blockToCube(blockY);
-        Cube16 section = cubes.get(cubeY);
+        Cube16 section = getCube(cubeY);
         if (section == null) {
             loadCube(section = new Cube16(this, cubeY));
         }
@@ -210,7 +592,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
     private int ifSectionExists(int blockY, int def, ToIntFunction<Cube16> cons) {
         int cubeY = Coords.blockToCube(blockY);
-        Cube16 section = cubes.get(cubeY);
+        Cube16 section = getCube(cubeY);
         if (section == null) {
             return def;
         }
@@ -219,7 +601,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
     private <T> T ifSectionExists(int blockY, Supplier<T> defaultValue, Function<Cube16, T> cons) {
         int cubeY = Coords.blockToCube(blockY);
-        Cube16 section = cubes.get(cubeY);
+        Cube16 section = getCube(cubeY);
         if (section == null) {
             return defaultValue.get();
         }
@@ -251,7 +633,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         if (readOnly) {
             return;
         }
-        getOrMakeSection(blockY).setMaterial(blockX, blockY, blockZ, Material.get(id));
+        setMaterialInternal(blockX, blockY, blockZ, Material.get(id));
     }
 
     @Override
@@ -266,7 +648,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         if (readOnly) {
             return;
         }
-        getOrMakeSection(blockY).setMaterial(blockX, blockY, blockZ, Material.get(getBlockType(blockX, blockY, blockZ), val));
+        setMaterialInternal(blockX, blockY, blockZ, Material.get(getBlockType(blockX, blockY, blockZ), val));
     }
 
     @Override
@@ -313,20 +695,28 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
     @Override
     public boolean isTerrainPopulated() {
         if (populationState == ColumnPopulationState.UNSET) {
-            // HEURISTICS!
-            // use population state of the top non-empty cube
-            for (int i = cubes.array().length - 1; i >= 0; i--) {
-                Cube16 cube = cubes.array()[i];
-                if (cube != null && !cube.isEmpty()) {
-                    return cube.cubePopulated;
-                }
+            if (populatedHeuristic == ColumnPopulationState.UNSET) {
+                populatedHeuristic = findTopCubePopulated() ? ColumnPopulationState.YES : ColumnPopulationState.NO;
             }
-            return false; // only empty cubes exist
+            return populatedHeuristic == ColumnPopulationState.YES;
         } else {
             return populationState == ColumnPopulationState.YES;
         }
     }
 
+    private boolean findTopCubePopulated() {
+        // HEURISTICS!
+        // use population state of the top non-empty cube
+        int[] cubeYs = getCubeYs();
+        for (int i = cubeYs.length - 1; i >= 0; i--) {
+            Cube16 cube = getCube(cubeYs[i]);
+            if (cube != null && !cube.isEmpty()) {
+                return cube.cubePopulated;
+            }
+        }
+        return false; // only empty cubes exist
+    }
+
     @Override
     public void setTerrainPopulated(boolean terrainPopulated) {
         if (readOnly) {
@@ -348,16 +738,298 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         if (readOnly) {
             return;
         }
+        setMaterialInternal(blockX, blockY, blockZ, material);
+    }
+
+    private void setMaterialInternal(int blockX, int blockY, int blockZ, Material material) {
         getOrMakeSection(blockY).setMaterial(blockX, blockY, blockZ, material);
+        if (!topBlocksValid) {
+            return;
+        }
+        int idx = Coords.index(blockX, blockZ);
+        int top = topBlocks[idx];
+        if (material != Material.AIR) {
+            if (blockY > top) {
+                topBlocks[idx] = blockY;
+            }
+        } else if (blockY == top) {
+            topBlocks[idx] = findTopBlock(blockX, blockZ, blockY - 1);
+        }
+    }
+
+    /**
+     * @return highest non-air block for each x/z column, indexed by {@link Coords#index(int, int)}
+     */
+    private int[] getTopBlocks() {
+        if (!topBlocksValid) {
+            Arrays.fill(topBlocks, Coords.NO_HEIGHT);
+            int remaining = topBlocks.length;
+            int[] cubeYs = getCubeYs();
+            for (int i = cubeYs.length - 1; i >= 0 && remaining > 0; i--) {
+                Cube16 cube = getCube(cubeYs[i]);
+                if (cube == null || cube.isEmpty()) {
+                    continue;
+                }
+                for (int idx = 0; idx < topBlocks.length; idx++) {
+                    if (topBlocks[idx] != Coords.NO_HEIGHT) {
+                        continue;
+                    }
+                    int x = Coords.index2dToX(idx), z = Coords.index2dToZ(idx);
+                    for (int dy = 15; dy >= 0; dy--) {
+                        if (cube.getId(Coords.index(x, dy, z)) != 0) {
+                            topBlocks[idx] = Coords.localToBlock(cube.getY(), dy);
+                            remaining--;
+                            break;
+                        }
+                    }
+                }
+            }
+            topBlocksValid = true;
+        }
+        return topBlocks;
+    }
+
+    private int findTopBlock(int blockX, int blockZ, int startY) {
+        int startCube = Coords.blockToCube(startY);
+        if (cubeSource == null) {
+            Cube16[] array = cubes.array();
+            for (int i = Math.min(cubes.indexOfY(startCube), array.length - 1); i >= 0; i--) {
+                int top = findTopBlock(array[i], blockX, blockZ, startY);
+                if (top != Coords.NO_HEIGHT) {
+                    return top;
+                }
+            }
+            return Coords.NO_HEIGHT;
+        }
+        int[] cubeYs = getCubeYs();
+        for (int i = cubeYs.length - 1; i >= 0; i--) {
+            if (cubeYs[i] <= startCube) {
+                int top = findTopBlock(getCube(cubeYs[i]), blockX, blockZ, startY);
+                if (top != Coords.NO_HEIGHT) {
+                    return top;
+                }
+            }
+        }
+        return Coords.NO_HEIGHT;
+    }
+
+    /**
+     * @return the highest non-air block in the cube at or below startY, or {@link Coords#NO_HEIGHT} if there is none
+     */
+    private static int findTopBlock(Cube16 cube, int blockX, int blockZ, int startY) {
+        int startCube = Coords.blockToCube(startY);
+        if (cube == null || cube.getY() > startCube || cube.isEmpty()) {
+            return Coords.NO_HEIGHT;
+        }
+        int maxDy = cube.getY() == startCube ? Coords.blockToLocal(startY) : 15;
+        for (int dy = maxDy; dy >= 0; dy--) {
+            if (cube.getId(Coords.index(blockX, dy, blockZ)) != 0) {
+                return Coords.localToBlock(cube.getY(), dy);
+            }
+        }
+        return Coords.NO_HEIGHT;
+    }
+
+    /**
+     * Reads materials of a single block column into the given array, without per-block cube lookups.
+     *
+     * @param blockX x coordinate of the column, only the lowest 4 bits are used
+     * @param blockZ z coordinate of the column, only the lowest 4 bits are used
+     * @param minY the lowest block y coordinate to read, inclusive
+     * @param maxY the highest block y coordinate to read, exclusive
+     * @param out the output array, index 0 corresponds to minY. Must have at least maxY - minY elements
+     *
+     * @return the output array
+     */
+    public Material[] getMaterialColumn(int blockX, int blockZ, int minY, int maxY, Material[] out) {
+        if (maxY - minY > out.length) {
+            throw new IllegalArgumentException("Output array too small: " + out.length + " for range " + minY + ".." + maxY);
+        }
+        int y = minY;
+        while (y < maxY) {
+            int cubeY = Coords.blockToCube(y);
+            int cubeEnd = Math.min(maxY, Coords.cubeToMaxBlock(cubeY) + 1);
+            Cube16 cube = getCube(cubeY);
+            if (cube == null) {
+                Arrays.fill(out, y - minY, cubeEnd - minY, Material.AIR);
+            } else {
+                for (int idx = Coords.index(blockX, y, blockZ); y < cubeEnd; y++, idx += Coords.CUBE_SIZE * Coords.CUBE_SIZE) {
+                    out[y - minY] = cube.getMaterial(idx);
+                }
+            }
+            y = cubeEnd;
+        }
+        return out;
+    }
+
+    /**
+     * Creates a read-only copy of block data of one cube.
+     *
+     * @param cubeY y position of the cube
+     *
+     * @return a snapshot of the cube, or <code>null</code> if the cube doesn't exist in this column
+     */
+    public CubeSnapshot getCubeSnapshot(int cubeY) {
+        Cube16 cube = getCube(cubeY);
+        if (cube == null) {
+            return null;
+        }
+        return new CubeSnapshot(cubeY, cube.id2material.toArray(new Material[0]),
+                cube.blocks == null ? null : cube.blocks.clone(), cube.bits);
+    }
+
+    /**
+     * @return the cube, read again from the cube source if it was evicted, or null if it doesn't exist
+     */
+    Cube16 getCube(int cubeY) {
+        Cube16 cube = cubes.get(cubeY);
+        if (cubeSource == null) {
+            return cube;
+        }
+        if (cube == null && evictedCubes.contains(cubeY)) {
+            CompoundTag tag = cubeSource.loadCube(columnX, cubeY, columnZ);
+            evictedCubes.remove(cubeY);
+            if (tag == null) {
+                return null;
+            }
+            loadCube(cube = new Cube16(this, tag));
+        }
+        if (cube != null) {
+            cube.lastAccess = ++cubeAccessCounter;
+        }
+        return cube;
+    }
+
+    /**
+     * Serializes one cube of a column that was loaded without the rest of its cubes. The column opacity index can't be
+     * updated without them, so the cube is marked to be added to it again by Cubic Chunks, and keeps the height map it
+     * was read with.
+     *
+     * @param cubeY y position of the cube
+     *
+     * @return the cube tag, or null if the cube doesn't exist or has no changes to write
+     */
+    CompoundTag serializeDetachedCube(int cubeY) {
+        Cube16 cube = cubes.get(cubeY);
+        if (cube == null || !needsWrite(cube)) {
+            return null;
+        }
+        CompoundTag tag = untracked(cube.toNBT(cube.getStoredHeightMap()));
+        cube.modified = false;
+        return tag;
+    }
+
+    /**
+     * Marks a cube tag written without the column opacity index as not tracked in it, so that Cubic Chunks adds the
+     * cube to the index again when it's loaded
+     */
+    private static CompoundTag untracked(CompoundTag cubeTag) {
+        ((CompoundTag) cubeTag.getTag("Level")).setTag("isSurfaceTracked", new ByteTag("isSurfaceTracked", (byte) 0));
+        return cubeTag;
+    }
+
+    /**
+     * @return decoded cubes of this column in order of increasing Y, with nulls where there are no cubes
+     */
+    Cube16[] getCubes() {
+        return cubes.array();
+    }
+
+    /**
+     * @return Y positions of decoded cubes with blocks changed since this column was loaded or created
+     */
+    IntArrayList getChangedCubes() {
+        IntArrayList changed = new IntArrayList();
+        for (Cube16 cube : cubes.array()) {
+            if (cube == null) {
+                continue;
+            }
+            if (cube.blocksChanged) {
+                changed.add(cube.getY());
+            }
+        }
+        return changed;
+    }
+
+    private static int getCubeY(Entity entity) {
+        return (int) Math.floor(entity.getPos()[1] / 16.0);
+    }
+
+    private static int getCubeY(TileEntity tileEntity) {
+        return Coords.blockToCube(tileEntity.getY());
+    }
+
+    private List<Entity> getEntitiesInCube(int cubeY) {
+        return getInCube(entities, entitiesByCube, Chunk16Virtual::getCubeY, cubeY);
+    }
+
+    private List<TileEntity> getTileEntitiesInCube(int cubeY) {
+        return getInCube(tileEntities, tileEntitiesByCube, Chunk16Virtual::getCubeY, cubeY);
+    }
+
+    /**
+     * @return elements currently in the given cube, from the grouping made for serialization if there is one
+     */
+    private static <T> List<T> getInCube(List<T> elements, IntObjectHashMap<List<T>> byCube, ToIntFunction<T> cubeYFunction,
+            int cubeY) {
+        if (byCube != null) {
+            List<T> inCube = byCube.get(cubeY);
+            return inCube == null ? Collections.emptyList() : inCube;
+        }
+        List<T> inCube = new ArrayList<>();
+        for (T element : elements) {
+            if (cubeYFunction.applyAsInt(element) == cubeY) {
+                inCube.add(element);
+            }
+        }
+        return inCube;
+    }
+
+    private static <T> IntObjectHashMap<List<T>> groupByCube(List<T> elements, ToIntFunction<T> cubeYFunction) {
+        IntObjectHashMap<List<T>> byCube = new IntObjectHashMap<>();
+        for (T element : elements) {
+            int cubeY = cubeYFunction.applyAsInt(element);
+            List<T> inCube = byCube.get(cubeY);
+            if (inCube == null) {
+                byCube.put(cubeY, inCube = new ArrayList<>(4));
+            }
+            inCube.add(element);
+        }
+        return byCube;
     }
 
     @Override
     public List<Entity> getEntities() {
+        if (!entitiesLoaded) {
+            for (int cubeY : getCubeYs()) {
+                // in streaming window mode, a cube may be missing from the cube source
+                Cube16 cube = getCube(cubeY);
+                if (cube == null) {
+                    continue;
+                }
+                for (CompoundTag tag : cube.<CompoundTag>getListSafe("Entities")) {
+                    entities.add(Entity.fromNBT(tag));
+                }
+            }
+            entitiesLoaded = true;
+        }
         return entities;
     }
 
     @Override
     public List<TileEntity> getTileEntities() {
+        if (!tileEntitiesLoaded) {
+            for (int cubeY : getCubeYs()) {
+                Cube16 cube = getCube(cubeY);
+                if (cube == null) {
+                    continue;
+                }
+                for (CompoundTag tag : cube.<CompoundTag>getListSafe("TileEntities")) {
+                    tileEntities.add(TileEntity.fromNBT(tag));
+                }
+            }
+            tileEntitiesLoaded = true;
+        }
         return tileEntities;
     }
 
@@ -418,13 +1090,61 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         if (!storing3dBiomes) {
             return getBiome(xSegment * 4, zSegment * 4);
         }
-        return getOrMakeSection(ySegment * 4).getBiome(xSegment, ySegment, zSegment);
+        int biome = get3DBiomeOrUnset(xSegment, ySegment, zSegment);
+        return biome == 255 ? getBiome(xSegment * 4, zSegment * 4) : biome;
     }
 
     @Override
     public void set3DBiome(int xSegment, int ySegment, int zSegment, int biome) {
+        if (readOnly) {
+            return;
+        }
         storing3dBiomes = true;
-        getOrMakeSection(ySegment * 4).setBiome(xSegment, ySegment, zSegment, biome);
+        int cubeY = Coords.blockToCube(Coords.biome3dToMinBlock(ySegment));
+        if (cubeSource != null) {
+            // biomes are written with the cube, make sure an evicted cube is written again
+            Cube16 cube = getCube(cubeY);
+            if (cube != null) {
+                cube.modified = true;
+            }
+        }
+        // stored even if it's the same as the 2D biome, so that changing the 2D biome later doesn't change it
+        byte[] cubeBiomes = biomes3d.get(cubeY);
+        if (cubeBiomes == null) {
+            cubeBiomes = new byte[Coords.BIOMES_PER_CUBE];
+            Arrays.fill(cubeBiomes, (byte) 255);
+            biomes3d.put(cubeY, cubeBiomes);
+        }
+        cubeBiomes[Coords.getBiomeAddress3d(xSegment & 3, ySegment & 3, zSegment & 3)] = (byte) biome;
+    }
+
+    /**
+     * @return the stored 3D biome, or 255 if the 2D biome should be used
+     */
+    private int get3DBiomeOrUnset(int xSegment, int ySegment, int zSegment) {
+        byte[] cubeBiomes = biomes3d.get(Coords.blockToCube(Coords.biome3dToMinBlock(ySegment)));
+        if (cubeBiomes == null) {
+            return 255;
+        }
+        return cubeBiomes[Coords.getBiomeAddress3d(xSegment & 3, ySegment & 3, zSegment & 3)] & 0xFF;
+    }
+
+    /**
+     * @return 3D biomes of the cube with 2D biome filled in, or null if the cube has no 3D biomes
+     */
+    private byte[] getCubeBiomesForWrite(int cubeY) {
+        byte[] cubeBiomes = biomes3d.get(cubeY);
+        if (cubeBiomes == null) {
+            return null;
+        }
+        byte[] out = cubeBiomes.clone();
+        for (int i = 0; i < out.length; i++) {
+            if ((out[i] & 0xFF) == 255) {
+                int x = i & 3, z = (i >> 4) & 3;
+                out[i] = (byte) getBiome(Coords.biome3dToMinBlock(x), Coords.biome3dToMinBlock(z));
+            }
+        }
+        return out;
     }
 
     @Override
@@ -460,40 +1180,18 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
     @Override
     public int getHighestNonAirBlock(int blockX, int blockZ) {
-        int height = getHeight(blockX, blockZ);
-        // start with opacity height and try to find anything up
-        int maxCube = Coords.blockToCube(height);
-
-        Cube16[] array = cubes.array();
-        int minIdx = cubes.indexOfY(maxCube);
-        int startIdx = array.length - 1;
-        // iterate over all cubes and only check ones that are above and aren't empty
-        for (int idx = startIdx; idx >= minIdx; idx--) {
-            Cube16 cube = array[idx];
-            // this is expected to be the case most of the time
-            if (cube == null || cube.isEmpty()) {
-                continue;
-            }
-            // TODO: is it better fo leave this here or return approximation?
-            for (int dy = 15; dy >= 0; dy--) {
-                if (cube.getMaterial(blockX, dy, blockZ) != Material.AIR) {
-                    return Coords.localToBlock(cube.getY(), dy);
-                }
-            }
-        }
-        return height;
+        int top = getTopBlocks()[Coords.index(blockX, blockZ)];
+        // no blocks in this column, fall back to the height set by WorldPainter
+        return top == Coords.NO_HEIGHT ? getHeight(blockX, blockZ) : top;
     }
 
     @Override
     public int getHighestNonAirBlock() {
-        Cube16[] array = cubes.array();
-        for (int i = array.length - 1; i >= 0 ; i--) {
-            Cube16 cube = array[i];
-            if (cube == null) {
-                continue;
-            }
-            if (!cube.isEmpty()) {
-                return Coords.cubeToMaxBlock(cube.getY());
+        int[] cubeYs = getCubeYs();
+        for (int i = cubeYs.length - 1; i >= 0; i--) {
+            Cube16 cube = getCube(cubeYs[i]);
+            if (cube != null && !cube.isEmpty()) {
+                return Coords.cubeToMaxBlock(cubeYs[i]);
             }
         }
         return org.pepsoft.worldpainter.Constants.MIN_HEIGHT;
@@ -501,32 +1199,44 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
     public static class Cube16 extends AbstractNBTItem {
 
-        private static final int BLOCK_COUNT = Coords.CUBE_SIZE * Coords.CUBE_SIZE * Coords.CUBE_SIZE;
-        // placeholder for writing to disk when original is empty, nibble version
-        private static final byte[] PLACEHOLDER_WRITE = new byte[BLOCK_COUNT >> 1];
-        // placeholder for writing to disk when original is empty, full byte version, filled with skylight 15
-        private static final byte[] PLACEHOLDER_WRITE_SKYLIGHT = new byte[BLOCK_COUNT >> 1];
-
-        static {
-            Arrays.fill(PLACEHOLDER_WRITE_SKYLIGHT, (byte) 0xFF);
-        }
-
         private Chunk16Virtual parent;
         private final int yPos;
         private long[] blocks;
         private int bits = 0;
+        // amount of blocks with non-zero palette ID, maintained by setId
+        private int nonAirCount = 0;
         private final ArrayList<Material> id2material = new ArrayList<>();
         private final ObjectIntIdentityHashMap<Material> material2id = new ObjectIntIdentityHashMap<>();
-        private byte[] skyLight;
-        private byte[] blockLight;
+        private LightArray skyLight = new LightArray(15);
+        private LightArray blockLight = new LightArray(0);
         private final boolean cubePopulated;
+        // set when a block is changed after the cube was loaded or created, light of such cubes may be stale
+        private boolean blocksChanged;
+        // set on any change not yet written, only used in streaming window mode
+        private boolean modified;
+        private long lastAccess;
 
         // a hack because of this NBT library works
         // it doesn't agree with nesting that doesn't directly correspond to in-memory nesting
-        private AbstractNBTItem sectionNbtPlaceholder;
+        private PlaceholderNBT sectionNbtPlaceholder;
 
         private static final long serialVersionUID = 1L;
-        private byte[] biomes;
+
+        // reusable buffers for decoding legacy block arrays, keys are (id << 4 | data)
+        private static final ThreadLocal<int[]> DECODE_KEYS = ThreadLocal.withInitial(() -> new int[4096]);
+        private static final ThreadLocal<int[]> DECODE_IDS = ThreadLocal.withInitial(() -> new int[4096]);
+        private static final ThreadLocal<int[]> ENCODE_IDS = ThreadLocal.withInitial(() -> new int[4096]);
+        private static final ThreadLocal<byte[]> ENCODE_PALETTE_LSB = ThreadLocal.withInitial(() -> new byte[4096]);
+        private static final ThreadLocal<byte[]> ENCODE_PALETTE_MSB = ThreadLocal.withInitial(() -> new byte[4096]);
+        private static final ThreadLocal<byte[]> ENCODE_PALETTE_DATA = ThreadLocal.withInitial(() -> new byte[4096]);
+        // shared read-only arrays written for cubes with only air
+        private static final byte[] EMPTY_BLOCKS = new byte[4096];
+        private static final byte[] EMPTY_NIBBLES = new byte[2048];
+        private static final ThreadLocal<int[]> DECODE_KEY_TO_ID = ThreadLocal.withInitial(() -> {
+            int[] table = new int[1 << 16];
+            Arrays.fill(table, -1);
+            return table;
+        });
 
         {
             id2material.add(Material.AIR);
@@ -543,12 +1253,7 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             }
             yPos = getNumber("y").intValue();
             sectionNbtPlaceholder = new PlaceholderNBT(true);
-
-            List<CompoundTag> entityTags = getListSafe("Entities");
-            parent.entities.addAll(entityTags.stream().map(Entity::fromNBT).collect(toCollection(ArrayList::new)));
-
-            List<CompoundTag> tileEntityTags = getListSafe("TileEntities");
-            parent.tileEntities.addAll(tileEntityTags.stream().map(TileEntity::fromNBT).collect(toCollection(ArrayList::new)));
+            // entities and tile entities are read from this tag by the column when first requested
 
             this.cubePopulated = getBoolean("populated");
         }
@@ -594,10 +1299,18 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             yPos = cubeY;
             sectionNbtPlaceholder = new PlaceholderNBT(false);
             this.cubePopulated = parent.populationState == ColumnPopulationState.YES;
+            this.modified = true;
         }
 
         @Override
         public CompoundTag toNBT() {
+            return toNBT(parent.buildOpacityIndex().yMax);
+        }
+
+        /**
+         * @param heightMap top opaque block of each x/z column, from the column opacity index
+         */
+        CompoundTag toNBT(int[] heightMap) {
             setByte("v", (byte) 1);
 
             // coords
@@ -607,7 +1320,8 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
             // save the worldgen stage and the target stage
             setBoolean("populated", parent.populationState == ColumnPopulationState.UNSET ? cubePopulated : parent.populationState == ColumnPopulationState.YES);
-            setBoolean("isSurfaceTracked", false);
+            // the column opacity index is written with all cubes included
+            setBoolean("isSurfaceTracked", true);
             // we can't know that one, but in the worst case, setting it incorrectly will cause cube to be sent to client before it's fully populated
             setBoolean("fullyPopulated", true);
 
@@ -615,13 +1329,18 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
             setList("Sections", CompoundTag.class, Collections.singletonList(sectionNbtPlaceholder.toNBT()));
 
-            setList("Entities", CompoundTag.class,
-                    parent.entities.stream().filter(this::isInCube).map(Entity::toNBT).collect(Collectors.toList()));
-            setList("TileEntities", CompoundTag.class,
-                    parent.tileEntities.stream().filter(this::isInCube).map(TileEntity::toNBT).collect(Collectors.toList()));
+            // if never requested, the loaded tags are still here and are written back unchanged
+            if (parent.entitiesLoaded || !containsTag("Entities")) {
+                setList("Entities", CompoundTag.class,
+                        parent.getEntitiesInCube(yPos).stream().map(Entity::toNBT).collect(Collectors.toList()));
+            }
+            if (parent.tileEntitiesLoaded || !containsTag("TileEntities")) {
+                setList("TileEntities", CompoundTag.class,
+                        parent.getTileEntitiesInCube(yPos).stream().map(TileEntity::toNBT).collect(Collectors.toList()));
+            }
 
             setMap("LightingInfo", new HashMap<String, Tag>() {{
-                put("LastHeightMap", new IntArrayTag("LastHeightMap", parent.yMax));
+                put("LastHeightMap", new IntArrayTag("LastHeightMap", heightMap));
                 put("EdgeNeedSkyLightUpdate", new ByteTag("EdgeNeedSkyLightUpdate", (byte) 0));
             }});
             CompoundTag cubeNbt = new CompoundTag("", new HashMap<>());
@@ -629,35 +1348,94 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             return cubeNbt;
         }
 
-        private boolean isInCube(TileEntity te) {
-            return (te.getY() >> 4) == this.yPos;
+        boolean isEmpty() {
+            return nonAirCount == 0;
         }
 
-        private boolean isInCube(Entity e) {
-            double[] pos = e.getPos();
-            int cubeY = (int) Math.floor(pos[1] / 16.0);
-            return cubeY == this.yPos;
+        /**
+         * @return the height map this cube was read with, or an empty one for new cubes
+         */
+        int[] getStoredHeightMap() {
+            Map<String, Tag> lightingInfo = containsTag("LightingInfo") ? getMap("LightingInfo") : null;
+            Tag heightMap = lightingInfo == null ? null : lightingInfo.get("LastHeightMap");
+            if (heightMap instanceof IntArrayTag && ((IntArrayTag) heightMap).getValue().length == Coords.CUBE_SIZE * Coords.CUBE_SIZE) {
+                return ((IntArrayTag) heightMap).getValue();
+            }
+            int[] empty = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+            Arrays.fill(empty, Coords.NO_HEIGHT);
+            return empty;
         }
 
-        boolean isEmpty() {
-            // data must be empty if blocks and add are null
-            return blocks == null || Arrays.stream(blocks).allMatch(x -> x == 0);
+        /**
+         * @return rough amount of heap memory used by this cube, including NBT data it keeps
+         */
+        long estimatedBytes() {
+            // the cube object, its NBT wrapper, and the palette list and map
+            long bytes = 256 + id2material.size() * 32L;
+            if (blocks != null) {
+                bytes += 16 + blocks.length * (long) Long.BYTES;
+            }
+            bytes += skyLight.estimatedBytes() + blockLight.estimatedBytes();
+            return bytes + sectionNbtPlaceholder.retainedBytes();
+        }
+
+        int getNonAirBlockCount() {
+            return nonAirCount;
         }
 
         int getBlockLight(int x, int y, int z) {
-            return getDataByte(blockLight, x, y, z, 0);
+            return blockLight.get(Coords.index(x, y, z));
         }
 
         int getSkyLight(int x, int y, int z) {
-            return getDataByte(skyLight, x, y, z, 15);
+            return skyLight.get(Coords.index(x, y, z));
         }
 
         void setBlockLight(int x, int y, int z, int val) {
-            blockLight = setDataByte(blockLight, x, y, z, val, 0);
+            blockLight.set(Coords.index(x, y, z), val);
+            modified = true;
         }
 
         void setSkyLight(int x, int y, int z, int val) {
-            skyLight = setDataByte(skyLight, x, y, z, val, 15);
+            skyLight.set(Coords.index(x, y, z), val);
+            modified = true;
+        }
+
+        void fillBlockLight(int val) {
+            blockLight.fill(val);
+            modified = true;
+        }
+
+        void fillSkyLight(int val) {
+            skyLight.fill(val);
+            modified = true;
+        }
+
+        /**
+         * @return true if all blocks of this cube fully block light. May return false for some opaque cubes
+         * if the palette has unused entries
+         */
+        boolean isFullyOpaque() {
+            if (nonAirCount != 4096) {
+                return false;
+            }
+            for (int i = 1; i < id2material.size(); i++) {
+                if (id2material.get(i).opacity < 15) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the highest light level emitted by any material in the palette
+         */
+        int getMaxLightEmission() {
+            int max = 0;
+            for (int i = 1; i < id2material.size(); i++) {
+                max = Math.max(max, id2material.get(i).blockLight);
+            }
+            return max;
         }
 
         void setMaterial(int x, int y, int z, Material mat) {
@@ -681,9 +1459,59 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
                 }
                 id = newId;
             }
+            if ((!blocksChanged || !modified) && getId(idx) != id) {
+                blocksChanged = true;
+                modified = true;
+            }
             setId(idx, id);
         }
 
+        private int getOrAddPaletteId(Material mat) {
+            int id = material2id.getOrDefault(mat, -1);
+            if (id < 0) {
+                id = id2material.size();
+                id2material.add(mat);
+                material2id.put(mat, id);
+            }
+            return id;
+        }
+
+        /**
+         * Replaces all block IDs at once, packing them directly with the amount of bits needed by current palette
+         *
+         * @param ids palette IDs of all 4096 blocks
+         */
+        private void setAllIds(int[] ids) {
+            int maxId = id2material.size() - 1;
+            if (maxId == 0) {
+                blocks = null;
+                bits = 0;
+                nonAirCount = 0;
+                return;
+            }
+            bits = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(maxId));
+            long[] packed = parent.blockArrayPool == null ? new long[bits * (4096 / 64)] : parent.blockArrayPool.take(bits);
+            int count = 0;
+            int startBit = 0;
+            for (int i = 0; i < 4096; i++, startBit += bits) {
+                long id = ids[i];
+                if (id != 0) {
+                    count++;
+                }
+                final int bitOffset = startBit & 63;
+                final int arrayIndex = startBit >>> 6;
+                if (bitOffset + bits <= 64) {
+                    packed[arrayIndex] |= id << (64 - bits - bitOffset);
+                } else {
+                    // split across 2 longs, see setId
+                    packed[arrayIndex] |= id >>> (bitOffset + bits - 64);
+                    packed[arrayIndex + 1] |= id << (128 - bitOffset - bits);
+                }
+            }
+            blocks = packed;
+            nonAirCount = count;
+        }
+
         private void resize(int newBits) {
             int[] ids = new int[4096];
             for (int i = 0; i < 4096; i++) {
@@ -691,6 +1519,8 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             }
             bits = newBits;
             blocks = new long[bits * (4096 / 64)];
+            // the new array is all zeros, setId will count the blocks again
+            nonAirCount = 0;
             for (int i = 0; i < 4096; i++) {
                 setId(i, ids[i]);
             }
@@ -705,6 +1535,35 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
         }
 
         private int getId(int idx) {
+            return getPackedId(blocks, bits, idx);
+        }
+
+        /**
+         * Unpacks all 4096 IDs at once, sequentially
+         */
+        static int[] unpackIds(long[] blocks, int bits, int[] out) {
+            if (blocks == null) {
+                Arrays.fill(out, 0, 4096, 0);
+                return out;
+            }
+            final int mask = (1 << bits) - 1;
+            int startBit = 0;
+            for (int i = 0; i < 4096; i++, startBit += bits) {
+                final int bitOffset = startBit & 63;
+                final int arrayIndex = startBit >>> 6;
+                if (bitOffset + bits <= 64) {
+                    out[i] = ((int) (blocks[arrayIndex] >>> (64 - bits - bitOffset))) & mask;
+                } else {
+                    // split across 2 longs, see getPackedId
+                    long part1 = blocks[arrayIndex] << (bitOffset + bits - 64);
+                    long part2 = blocks[arrayIndex + 1] >>> (128 - bitOffset - bits);
+                    out[i] = ((int) (part1 | part2)) & mask;
+                }
+            }
+            return out;
+        }
+
+        static int getPackedId(long[] blocks, int bits, int idx) {
             if (blocks == null) {
                 return 0;
             }
@@ -741,6 +1600,17 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             }
             assert blocks != null;
 
+            int oldId = getId(idx);
+            if (oldId == 0 && id != 0) {
+                if (nonAirCount++ == 0) {
+                    parent.populatedHeuristic = ColumnPopulationState.UNSET;
+                }
+            } else if (oldId != 0 && id == 0) {
+                if (--nonAirCount == 0) {
+                    parent.populatedHeuristic = ColumnPopulationState.UNSET;
+                }
+            }
+
             int prevIdBefore = 0, prevIdAfter = 0;
             if (DEBUG) {
                 if (idx > 0) {
@@ -794,58 +1664,24 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
             }
         }
 
-        private int getDataByte(byte[] array, int x, int y, int z, int def) {
-            if (array == null) {
-                return def;
-            }
-            int blockOffset = Coords.index(x, y, z);
-            byte dataByte = array[blockOffset >> 1];
-            // Even byte -> least significant bits
-            // Odd byte -> most significant bits
-            return (blockOffset & 1) == 0 ? dataByte & 0x0F : (dataByte & 0xF0) >> 4;
-        }
-
-        private byte[] setDataByte(byte[] array, int x, int y, int z, int val, int def) {
-            if (array == null) {
-                if (val == def) {
-                    return null;
-                }
-                array = new byte[BLOCK_COUNT >> 1];
-                if (def != 0) {
-                    Arrays.fill(array, (byte) ((def & 0xF) | ((def & 0xF) << 4)));
-                }
-            }
-            int blockOffset = Coords.index(x, y, z);
-            int offset = blockOffset >> 1;
-            byte dataByte = array[offset];
-            // Even byte -> least significant bits
-            // Odd byte -> most significant bits
-            array[offset] = (blockOffset & 1) == 0 ?
-                    (byte) ((dataByte & 0xF0) | (val & 0x0F)) :
-                    (byte) ((dataByte & 0x0F) | ((val & 0x0F) << 4));
-            return array;
-        }
-
         int getY() {
             return yPos;
         }
 
-        public int getBiome(int xSegment, int ySegment, int zSegment) {
-            if (biomes == null) {
-                return parent.getBiome(Coords.biome3dToMinBlock(xSegment), Coords.biome3dToMinBlock(zSegment));
-            }
-            return biomes[Coords.getBiomeAddress3d(xSegment & 3, ySegment & 3, zSegment & 3)] & 0xFF;
-        }
-
-        public void setBiome(int xSegment, int ySegment, int zSegment, int biome) {
-            if (biomes == null) {
-                biomes = new byte[Coords.BIOMES_PER_CUBE];
-                Arrays.fill(biomes, (byte) -1);
+        private class PlaceholderNBT extends AbstractNBTItem {
+            /**
+             * @return size of block arrays of a loaded section, they stay in the section tag until the cube is written
+             */
+            long retainedBytes() {
+                long bytes = 0;
+                for (String name : new String[]{"Blocks", "Data", "Add"}) {
+                    if (containsTag(name)) {
+                        bytes += 16 + getByteArray(name).length;
+                    }
+                }
+                return bytes;
             }
-            biomes[Coords.getBiomeAddress3d(xSegment & 3, ySegment & 3, zSegment & 3)] = (byte) biome;
-        }
 
-        private class PlaceholderNBT extends AbstractNBTItem {
             PlaceholderNBT(boolean load) {
                 super(Cube16.this.getSectionTag());
                 if (!load) {
@@ -860,31 +1696,49 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
                 if (containsTag("Add")) {
                     add = getByteArray("Add");
                 }
+                // first collect (id << 4 | data) keys, then resolve each distinct key only once
+                int[] keys = DECODE_KEYS.get();
                 for (int i = 0; i < 2048; i++) {
                     // Even byte -> least significant bits
                     // Odd byte -> most significant bits
                     int id1 = (blocks[i * 2] & 0xFF);
-                    if (add != null) {
-                        id1 |= (add[i] & 0xF) << 8;
-                    }
-                    int data1 = data[i] & 0xF;
-
-                    setMaterial(i * 2, Material.get(id1, data1));
-
                     int id2 = (blocks[i * 2 + 1] & 0xFF);
                     if (add != null) {
+                        id1 |= (add[i] & 0xF) << 8;
                         id2 |= (add[i] & 0xF0) << 4;
                     }
-                    int data2 = (data[i] & 0xF0) >> 4;
-                    setMaterial(i * 2 + 1, Material.get(id2, data2));
+                    keys[i * 2] = id1 << 4 | (data[i] & 0xF);
+                    keys[i * 2 + 1] = id2 << 4 | (data[i] & 0xF0) >> 4;
                 }
+                int[] keyToId = DECODE_KEY_TO_ID.get();
+                int[] ids = DECODE_IDS.get();
+                int distinctKeys = 0;
+                try {
+                    for (int i = 0; i < 4096; i++) {
+                        int key = keys[i];
+                        int id = keyToId[key];
+                        if (id < 0) {
+                            id = getOrAddPaletteId(Material.get(key >>> 4, key & 0xF));
+                            keyToId[key] = id;
+                            // remember the key so that the table can be cleared afterwards
+                            keys[distinctKeys++] = key;
+                        }
+                        ids[i] = id;
+                    }
+                } finally {
+                    // the table is reused by the next cube decoded on this thread, even if this one failed
+                    for (int i = 0; i < distinctKeys; i++) {
+                        keyToId[keys[i]] = -1;
+                    }
+                }
+                setAllIds(ids);
 
-                skyLight = getByteArray("SkyLight");
-                blockLight = getByteArray("BlockLight");
+                skyLight = LightArray.fromArray(getByteArray("SkyLight"), 15);
+                blockLight = LightArray.fromArray(getByteArray("BlockLight"), 0);
                 if (containsTag("Biomes3D")) {
-                    biomes = getByteArray("Biomes3D");
+                    parent.biomes3d.put(yPos, getByteArray("Biomes3D"));
                 } else if (containsTag("Biomes")) {
-                    biomes = toNewBiomes(getByteArray("Biomes"));
+                    parent.biomes3d.put(yPos, toNewBiomes(getByteArray("Biomes")));
                 }
             }
 
@@ -903,34 +1757,57 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
                 return newBiomes;
             }
 
-            private int getOldBiomeAddress(int biomeX, int biomeZ) {
-                return biomeX << 3 | biomeZ;
+            /**
+             * @return the thread's table, grown if needed. Palettes only grow, so a cube that had many different
+             * blocks over time can have more palette entries than blocks
+             */
+            private byte[] getPaletteTable(ThreadLocal<byte[]> table, int paletteSize) {
+                byte[] array = table.get();
+                if (array.length < paletteSize) {
+                    array = new byte[Math.max(paletteSize, array.length * 2)];
+                    table.set(array);
+                }
+                return array;
             }
 
             @Override
             public CompoundTag toNBT() {
-                byte[] blocks = new byte[4096];
-                byte[] data = new byte[2048];
-                byte[] add = null;
-                for (int i = 0; i < 2048; i++) {
-                    // Even byte -> least significant bits
-                    // Odd byte -> most significant bits
-                    Material mat1 = getMaterial(i * 2);
-                    Material mat2 = getMaterial(i * 2 + 1);
-                    int idLSB1 = mat1.blockType & 0xFF;
-                    int idLSB2 = mat2.blockType & 0xFF;
-                    int idMSB1 = mat1.blockType >>> 8;
-                    int idMSB2 = (mat2.blockType >>> 8) << 4;
-                    int data1 = mat1.data;
-                    int data2 = mat2.data << 4;
-                    blocks[i * 2] = (byte) idLSB1;
-                    blocks[i * 2 + 1] = (byte) idLSB2;
-                    data[i] |= data1 | data2;
-                    if (idMSB1 != 0 || idMSB2 != 0) {
-                        if (add == null) {
-                            add = new byte[2048];
+                // the arrays are kept by the tag until it's written, so only the temporary tables are reused
+                int paletteSize = id2material.size();
+                byte[] paletteLSB = getPaletteTable(ENCODE_PALETTE_LSB, paletteSize);
+                byte[] paletteMSB = getPaletteTable(ENCODE_PALETTE_MSB, paletteSize);
+                byte[] paletteData = getPaletteTable(ENCODE_PALETTE_DATA, paletteSize);
+                boolean needsAdd = false;
+                for (int id = 0; id < paletteSize; id++) {
+                    Material mat = id2material.get(id);
+                    paletteLSB[id] = (byte) mat.blockType;
+                    paletteMSB[id] = (byte) ((mat.blockType >>> 8) & 0xF);
+                    paletteData[id] = (byte) (mat.data & 0xF);
+                    needsAdd |= paletteMSB[id] != 0;
+                }
+
+                byte[] blocks, data, add = null;
+                if (Cube16.this.blocks == null) {
+                    blocks = EMPTY_BLOCKS;
+                    data = EMPTY_NIBBLES;
+                } else {
+                    int[] ids = unpackIds(Cube16.this.blocks, bits, ENCODE_IDS.get());
+                    blocks = new byte[4096];
+                    data = new byte[2048];
+                    for (int i = 0; i < 2048; i++) {
+                        // Even byte -> least significant bits
+                        // Odd byte -> most significant bits
+                        int id1 = ids[i * 2];
+                        int id2 = ids[i * 2 + 1];
+                        blocks[i * 2] = paletteLSB[id1];
+                        blocks[i * 2 + 1] = paletteLSB[id2];
+                        data[i] = (byte) (paletteData[id1] | paletteData[id2] << 4);
+                    }
+                    if (needsAdd) {
+                        add = new byte[2048];
+                        for (int i = 0; i < 2048; i++) {
+                            add[i] = (byte) (paletteMSB[ids[i * 2]] | paletteMSB[ids[i * 2 + 1]] << 4);
                         }
-                        add[i] |= idMSB1 | idMSB2;
                     }
                 }
 
@@ -939,38 +1816,153 @@ public class Chunk16Virtual extends AbstractNBTItem implements Chunk {
 
                 if (add != null) {
                     setByteArray("Add", add);
+                } else if (containsTag("Add")) {
+                    // loaded section may still have the old array, which is no longer needed
+                    removeTag("Add");
                 }
 
-                setByteArray("SkyLight", skyLight == null ? PLACEHOLDER_WRITE_SKYLIGHT : skyLight);
-                setByteArray("BlockLight", blockLight == null ? PLACEHOLDER_WRITE : blockLight);
+                setByteArray("SkyLight", skyLight.toArray());
+                setByteArray("BlockLight", blockLight.toArray());
+                byte[] biomes = parent.getCubeBiomesForWrite(yPos);
                 if (biomes != null) {
                     setByteArray("Biomes3D", biomes);
                     setByteArray("Biomes", toOldBiomeArray(biomes));
                 }
                 return super.toNBT();
             }
+        }
+    }
 
-            private byte[] toOldBiomeArray(byte[] biomes) {
-                byte[] old = new byte[8*8];
-                for (int x = 0; x < 4; x++) {
-                    for (int y = 0; y < 4; y++) {
-                        for (int z = 0; z < 4; z++) {
-                            old[getOldBiomeAddress(x << 1 | (y & 1), z << 1 | ((y >> 1) & 1))] = biomes[Coords.getBiomeAddress3d(x, y, z)];
-                        }
+    /**
+     * Cubic Chunks opacity index of a column. For each x/z there is the lowest and highest opaque block, and if there
+     * are transparent gaps between them, a list of segments where opacity changes.
+     */
+    private static final class OpacityIndex {
+        final int[] yMin = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+        final int[] yMax = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+        // segments packed as pos << 8 | opacity, null if there are no gaps
+        final IntArrayList[] segments = new IntArrayList[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+
+        OpacityIndex() {
+            Arrays.fill(yMin, Coords.NO_HEIGHT);
+            Arrays.fill(yMax, Coords.NO_HEIGHT);
+        }
+
+        /**
+         * Marks a block as opaque, must be called in order of increasing Y for each x/z
+         */
+        void addOpaque(int index2d, int blockY) {
+            int top = yMax[index2d];
+            if (top == Coords.NO_HEIGHT) {
+                yMin[index2d] = blockY;
+            } else if (blockY > top + 1) {
+                IntArrayList columnSegments = segments[index2d];
+                if (columnSegments == null) {
+                    columnSegments = segments[index2d] = new IntArrayList(4);
+                    columnSegments.add(yMin[index2d] << 8 | 1);
+                }
+                columnSegments.add((top + 1) << 8);
+                columnSegments.add(blockY << 8 | 1);
+            }
+            yMax[index2d] = blockY;
+        }
+
+        byte[] toByteArray() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+            try (DataOutputStream out = new DataOutputStream(baos)) {
+                for (int i = 0; i < yMin.length; i++) {
+                    out.writeInt(yMin[i]);
+                    out.writeInt(yMax[i]);
+                    IntArrayList columnSegments = segments[i];
+                    if (columnSegments == null) {
+                        // a single opaque segment from yMin to yMax
+                        out.writeShort(0);
+                        continue;
+                    }
+                    out.writeShort(columnSegments.size());
+                    for (int j = 0; j < columnSegments.size(); j++) {
+                        out.writeInt(columnSegments.get(j));
                     }
                 }
-                return old;
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing column", e);
             }
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Read-only copy of palette and packed block IDs of a cube, for tight iteration over all blocks.
+     * Block index layout is the same as {@link Coords#index(int, int, int)}.
+     */
+    public static final class CubeSnapshot {
+        private final int cubeY;
+        private final Material[] palette;
+        private final long[] blocks;
+        private final int bits;
+
+        CubeSnapshot(int cubeY, Material[] palette, long[] blocks, int bits) {
+            this.cubeY = cubeY;
+            this.palette = palette;
+            this.blocks = blocks;
+            this.bits = bits;
+        }
+
+        public int getCubeY() {
+            return cubeY;
+        }
+
+        /**
+         * @return bits per block ID in the packed array, 0 if all blocks are air
+         */
+        public int getBits() {
+            return bits;
+        }
+
+        public int getPaletteSize() {
+            return palette.length;
+        }
+
+        public Material getPaletteEntry(int id) {
+            return palette[id];
+        }
+
+        public int getId(int idx) {
+            return Cube16.getPackedId(blocks, bits, idx);
+        }
+
+        public Material getMaterial(int idx) {
+            return palette[getId(idx)];
+        }
+
+        /**
+         * Unpacks all 4096 palette IDs into the given array.
+         *
+         * @param out the output array, must have at least 4096 elements
+         *
+         * @return the output array
+         */
+        public int[] getIds(int[] out) {
+            return Cube16.unpackIds(blocks, bits, out);
         }
     }
 
     static class SerializedColumn {
         final CompoundTag columnTag;
-        final Map<Integer, CompoundTag> cubeTags;
+        final IntObjectHashMap<CompoundTag> cubeTags;
+        // Y positions of cubes that are the same as emptyCubeTag, except for coordinates
+        final IntArrayList emptyCubeYs;
+        final CompoundTag emptyCubeTag;
+
+        SerializedColumn(CompoundTag columnTag, IntObjectHashMap<CompoundTag> sectionTags) {
+            this(columnTag, sectionTags, new IntArrayList(0), null);
+        }
 
-        SerializedColumn(CompoundTag columnTag, Map<Integer, CompoundTag> sectionTags) {
+        SerializedColumn(CompoundTag columnTag, IntObjectHashMap<CompoundTag> sectionTags, IntArrayList emptyCubeYs, CompoundTag emptyCubeTag) {
             this.columnTag = columnTag;
             this.cubeTags = sectionTags;
+            this.emptyCubeYs = emptyCubeYs;
+            this.emptyCubeTag = emptyCubeTag;
         }
 
         CompoundTag getColumnLevel() {
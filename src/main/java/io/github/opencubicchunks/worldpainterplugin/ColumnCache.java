@@ -0,0 +1,327 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import org.pepsoft.minecraft.MinecraftCoords;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded LRU cache of decoded columns of one chunk store. Repeated requests for a column get the same instance, and
+ * saving a cached column only marks it dirty, it's written to the store when it's evicted or the cache is flushed.
+ * Memory of cached columns is reserved in {@link MemoryBudget#GLOBAL}, and least recently used columns are evicted
+ * when the budget runs out. Columns are only evicted in {@link #put(Chunk16Virtual)}, by the thread that works with
+ * them, never while another thread loads a column. Thread safe.
+ *
+ * <p>The maximum amount of columns is set with <code>-Dcubicchunks.columnCacheSize</code>, 0 (the default) disables
+ * the cache.
+ */
+final class ColumnCache implements MemoryBudget.Reclaimer {
+
+    static final int SIZE = Integer.getInteger("cubicchunks.columnCacheSize", 0);
+
+    // totals of all caches, reported at the end of an export
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+    private static final LongAdder WRITE_BACKS = new LongAdder();
+
+    private final int maxSize;
+    private final Consumer<Chunk16Virtual> writer;
+    private final ReentrantLock lock = new ReentrantLock();
+    // memory other threads asked for, freed by the next put(), see reclaim()
+    private final AtomicLong reclaimRequested = new AtomicLong();
+    private final LinkedHashMap<MinecraftCoords, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // incremented before and after every write to the store, see putIfRoom()
+    private long storeWrites;
+    private boolean closed;
+
+    /**
+     * @param maxSize the maximum amount of cached columns
+     * @param writer writes a column to the chunk store
+     */
+    ColumnCache(int maxSize, Consumer<Chunk16Virtual> writer) {
+        this.maxSize = maxSize;
+        this.writer = writer;
+        MemoryBudget.GLOBAL.addReclaimer(this);
+    }
+
+    /**
+     * @return the cached column, or null if it's not cached
+     */
+    Chunk16Virtual get(int x, int z) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(new MinecraftCoords(x, z));
+            if (entry == null) {
+                MISSES.increment();
+                return null;
+            }
+            HITS.increment();
+            return entry.column;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the column is cached, without counting it as a use of the column
+     */
+    boolean contains(int x, int z) {
+        lock.lock();
+        try {
+            return entries.containsKey(new MinecraftCoords(x, z));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a column loaded from the store, if there is enough memory left in the budget.
+     *
+     * @param column the column
+     *
+     * @return the cached instance, which is a different one if the column was added by another thread in the meantime
+     */
+    Chunk16Virtual put(Chunk16Virtual column) {
+        long bytes = column.estimatedBytes();
+        lock.lock();
+        try {
+            MinecraftCoords pos = column.getCoords();
+            Entry existing = entries.get(pos);
+            if (existing != null) {
+                return existing.column;
+            }
+            evictLeastRecent(reclaimRequested.getAndSet(0));
+            // under the lock, so that reclaim() can evict from this cache
+            if (!MemoryBudget.GLOBAL.tryReserve(bytes)) {
+                return column;
+            }
+            entries.put(pos, new Entry(column, bytes));
+            while (entries.size() > maxSize) {
+                Iterator<Entry> it = entries.values().iterator();
+                evict(it.next());
+                it.remove();
+            }
+            return column;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return stamp for {@link #putIfRoom(Chunk16Virtual, long)}, taken before reading a column from the store
+     */
+    long getWriteStamp() {
+        lock.lock();
+        try {
+            return storeWrites;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a column only if the cache and the memory budget have room for it without evicting anything, and no column
+     * was written to the store since the stamp was taken, so that the column can't be outdated.
+     *
+     * @param column the column
+     * @param writeStamp the stamp from {@link #getWriteStamp()}
+     *
+     * @return true if the column was added
+     */
+    boolean putIfRoom(Chunk16Virtual column, long writeStamp) {
+        long bytes = column.estimatedBytes();
+        lock.lock();
+        try {
+            if (closed || storeWrites != writeStamp || entries.size() >= maxSize || entries.containsKey(column.getCoords())
+                    || !MemoryBudget.GLOBAL.tryReserveFree(bytes)) {
+                return false;
+            }
+            entries.put(column.getCoords(), new Entry(column, bytes));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a column as changed, if this instance is the cached one.
+     *
+     * @param column the column
+     *
+     * @return true if the column is cached and will be written later, false if the caller has to write it
+     */
+    boolean markDirty(Chunk16Virtual column) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(column.getCoords());
+            if (entry == null || entry.column != column) {
+                return false;
+            }
+            entry.dirty = true;
+            long bytes = column.estimatedBytes();
+            // reclaiming under the lock could evict this entry, so only free memory is used
+            if (bytes > entry.bytes && !MemoryBudget.GLOBAL.tryReserveFree(bytes - entry.bytes)) {
+                // the column grew too much to keep it
+                entries.remove(column.getCoords());
+                evict(entry);
+                return true;
+            }
+            if (bytes < entry.bytes) {
+                MemoryBudget.GLOBAL.release(entry.bytes - bytes);
+            }
+            entry.bytes = bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes a column in the store by other means than the cache, and drops the cached column. If the cached column
+     * has unsaved changes, it's written after that, so that they are not lost.
+     *
+     * <p>The store is written under the lock, with the write stamp changed before and after it, so that a column
+     * read for {@link #putIfRoom(Chunk16Virtual, long)} while the store changes is never added.
+     *
+     * @param x column x position
+     * @param z column z position
+     * @param write writes to the store
+     */
+    void writeThrough(int x, int z, Runnable write) {
+        lock.lock();
+        try {
+            storeWrites++;
+            write.run();
+            storeWrites++;
+            Entry entry = entries.remove(new MinecraftCoords(x, z));
+            if (entry != null) {
+                writeIfDirty(entry);
+                MemoryBudget.GLOBAL.release(entry.bytes);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a column to the store if it's cached and dirty, so that it can be read from the store. It stays cached.
+     */
+    void writeBack(int x, int z) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(new MinecraftCoords(x, z));
+            if (entry != null) {
+                writeIfDirty(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all dirty columns to the store and drops all columns
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                evict(entry);
+            }
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clears the cache and stops taking part in the memory budget
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        clear();
+        MemoryBudget.GLOBAL.removeReclaimer(this);
+    }
+
+    @Override
+    public long reclaim(long bytes) {
+        if (!lock.isHeldByCurrentThread()) {
+            // the columns may be in use by the thread that owns this cache, writing or dropping them here would race
+            // with its changes, so it frees the memory on its next put()
+            reclaimRequested.accumulateAndGet(bytes, Math::max);
+            return 0;
+        }
+        return evictLeastRecent(bytes);
+    }
+
+    private long evictLeastRecent(long bytes) {
+        long freed = 0;
+        List<MinecraftCoords> evicted = new ArrayList<>();
+        for (Map.Entry<MinecraftCoords, Entry> e : entries.entrySet()) {
+            if (freed >= bytes) {
+                break;
+            }
+            freed += e.getValue().bytes;
+            evict(e.getValue());
+            evicted.add(e.getKey());
+        }
+        evicted.forEach(entries::remove);
+        return freed;
+    }
+
+    private void evict(Entry entry) {
+        writeIfDirty(entry);
+        MemoryBudget.GLOBAL.release(entry.bytes);
+        EVICTIONS.increment();
+    }
+
+    private void writeIfDirty(Entry entry) {
+        if (entry.dirty) {
+            storeWrites++;
+            writer.accept(entry.column);
+            storeWrites++;
+            entry.dirty = false;
+            WRITE_BACKS.increment();
+        }
+    }
+
+    /**
+     * @return summary of hits, misses and evictions of all column caches since the last reset
+     */
+    static String getStats() {
+        long hits = HITS.sum();
+        long total = hits + MISSES.sum();
+        return String.format("%d/%d column requests served from cache (%.1f%%), %d columns evicted, %d written back",
+                hits, total, total == 0 ? 0.0 : hits * 100.0 / total, EVICTIONS.sum(), WRITE_BACKS.sum());
+    }
+
+    static void resetStats() {
+        HITS.reset();
+        MISSES.reset();
+        EVICTIONS.reset();
+        WRITE_BACKS.reset();
+    }
+
+    private static final class Entry {
+        final Chunk16Virtual column;
+        long bytes;
+        boolean dirty;
+
+        Entry(Chunk16Virtual column, long bytes) {
+            this.column = column;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import org.pepsoft.minecraft.MinecraftCoords;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads columns into a {@link ColumnCache} on a background thread, ahead of requests for them. Columns are added only
+ * while the cache and the memory budget have room for them, so prefetching never evicts anything.
+ *
+ * <p>Enabled with <code>-Dcubicchunks.prefetch=true</code>, only together with the column cache.
+ */
+final class ColumnPrefetcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger("ColumnPrefetcher");
+
+    static final boolean ENABLED = Boolean.getBoolean("cubicchunks.prefetch");
+    // hints beyond that are dropped, by the time they would be handled the columns are likely already loaded
+    private static final int MAX_QUEUED = 64;
+
+    private static final LongAdder PREFETCHED = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+
+    private final ColumnCache cache;
+    private final Loader loader;
+    private final Set<MinecraftCoords> queued = ConcurrentHashMap.newKeySet();
+    // created when first needed, and stopped while the store is flushed or closed
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Loads a column from the store as it is stored, without writing back cached changes or making room in the memory
+     * budget. Returns null for columns that are cached.
+     */
+    interface Loader {
+        Chunk16Virtual load(int x, int z);
+    }
+
+    ColumnPrefetcher(ColumnCache cache, Loader loader) {
+        this.cache = cache;
+        this.loader = loader;
+    }
+
+    /**
+     * Queues loading of a column, if it's not cached or queued yet
+     */
+    synchronized void prefetch(int x, int z) {
+        if (cache.contains(x, z)) {
+            return;
+        }
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "Column prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (executor.getQueue().size() >= MAX_QUEUED) {
+            return;
+        }
+        MinecraftCoords pos = new MinecraftCoords(x, z);
+        if (!queued.add(pos)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                load(x, z);
+            } finally {
+                queued.remove(pos);
+            }
+        });
+    }
+
+    private void load(int x, int z) {
+        if (cache.contains(x, z)) {
+            return;
+        }
+        // columns written while this one is read may make it outdated, the cache checks that
+        long stamp = cache.getWriteStamp();
+        Chunk16Virtual column;
+        try {
+            column = loader.load(x, z);
+        } catch (RuntimeException e) {
+            // the column will be loaded again when requested, and errors reported then
+            LOGGER.debug("Prefetching column ({}, {}) failed", x, z, e);
+            return;
+        }
+        if (column == null) {
+            return;
+        }
+        if (cache.putIfRoom(column, stamp)) {
+            PREFETCHED.increment();
+        } else {
+            DROPPED.increment();
+        }
+    }
+
+    /**
+     * Drops queued hints and waits for the column being loaded, so that the store can be flushed or closed
+     */
+    synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        // not interrupting the thread, that would close region files it reads from
+        executor.getQueue().clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        queued.clear();
+    }
+
+    /**
+     * @return summary of prefetched columns since the last reset
+     */
+    static String getStats() {
+        return String.format("%d columns prefetched, %d dropped for lack of room", PREFETCHED.sum(), DROPPED.sum());
+    }
+
+    static void resetStats() {
+        PREFETCHED.reset();
+        DROPPED.reset();
+    }
+}
@@ -3,18 +3,37 @@ package io.github.opencubicchunks.worldpainterplugin;
 import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.ObjectArrayList;
 
+/**
+ * Cubes of a single column, by Y position.
+ *
+ * <p>Cubes of a column are almost always a contiguous range of Y positions, so they are stored in an array indexed
+ * by Y relative to a base position, which grows at either end as needed. Only columns where most positions in that
+ * range would be empty switch to a hash map and a sorted list.
+ */
 public class CubeMap {
 
-    private final IntObjectHashMap<Chunk16Virtual.Cube16> byCubeY = new IntObjectHashMap<>(32);
-    private final ObjectArrayList<Chunk16Virtual.Cube16> cubes = new ObjectArrayList<>(32);
+    private static final int INITIAL_SIZE = 16;
+    // dense layout is kept as long as this many array entries or less are used per cube
+    private static final int MAX_DENSE_SLOTS_PER_CUBE = 4;
+    // small columns always stay dense, no matter how many gaps they have
+    private static final int MIN_SPARSE_SPAN = 64;
 
-    public CubeMap() {
-        // a little hack to make the buffer the type we want
-        cubes.buffer = new Chunk16Virtual.Cube16[cubes.buffer.length];
-    }
+    // dense layout, entries are at index cubeY - base
+    private Chunk16Virtual.Cube16[] dense = new Chunk16Virtual.Cube16[INITIAL_SIZE];
+    private int base;
+    private int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+    private int count;
+
+    // sparse layout, null while dense
+    private IntObjectHashMap<Chunk16Virtual.Cube16> byCubeY;
+    private ObjectArrayList<Chunk16Virtual.Cube16> cubes;
 
     public Chunk16Virtual.Cube16 get(int cubeY) {
-        return byCubeY.get(cubeY);
+        if (byCubeY != null) {
+            return byCubeY.get(cubeY);
+        }
+        int idx = cubeY - base;
+        return idx >= 0 && idx < dense.length ? dense[idx] : null;
     }
 
     /**
@@ -23,36 +42,133 @@ public class CubeMap {
      * @param cube the cube to add
      */
     public void put(Chunk16Virtual.Cube16 cube) {
-        int searchIndex = binarySearch(cube.getY());
-        if (this.contains(cube.getY(), searchIndex)) {
-            throw new IllegalArgumentException("Cube at " + cube.getY() + " already exists!");
+        int cubeY = cube.getY();
+        if (get(cubeY) != null) {
+            throw new IllegalArgumentException("Cube at " + cubeY + " already exists!");
         }
-        cubes.insert(searchIndex, cube);
-        byCubeY.put(cube.getY(), cube);
+        if (byCubeY != null) {
+            putSparse(cube);
+            return;
+        }
+        if (count == 0) {
+            base = cubeY - INITIAL_SIZE / 2;
+        }
+        int newMinY = Math.min(minY, cubeY), newMaxY = Math.max(maxY, cubeY);
+        long span = (long) newMaxY - newMinY + 1;
+        if (span > MIN_SPARSE_SPAN && span > (long) (count + 1) * MAX_DENSE_SLOTS_PER_CUBE) {
+            toSparse();
+            putSparse(cube);
+            return;
+        }
+        if (cubeY < base || cubeY - base >= dense.length) {
+            grow(newMinY, newMaxY, cubeY < base);
+        }
+        dense[cubeY - base] = cube;
+        minY = newMinY;
+        maxY = newMaxY;
+        count++;
     }
 
     /**
-     * @return internal array with all the cubes. Size may be larger than actual amount of cubes,
-     * filled with nulls after the end.
+     * Removes a cube
+     *
+     * @param cubeY y position of the cube
+     *
+     * @return the removed cube, or null if there was no cube at this position
      */
-    public Chunk16Virtual.Cube16[] array() {
-        return (Chunk16Virtual.Cube16[]) cubes.buffer;
+    public Chunk16Virtual.Cube16 remove(int cubeY) {
+        if (byCubeY != null) {
+            Chunk16Virtual.Cube16 cube = byCubeY.remove(cubeY);
+            if (cube != null) {
+                cubes.remove(binarySearch(cubeY));
+                count--;
+            }
+            return cube;
+        }
+        Chunk16Virtual.Cube16 cube = get(cubeY);
+        if (cube == null) {
+            return null;
+        }
+        dense[cubeY - base] = null;
+        count--;
+        if (count == 0) {
+            minY = Integer.MAX_VALUE;
+            maxY = Integer.MIN_VALUE;
+        } else {
+            while (dense[minY - base] == null) {
+                minY++;
+            }
+            while (dense[maxY - base] == null) {
+                maxY--;
+            }
+        }
+        return cube;
     }
 
-    public int indexOfY(int cubeY) {
-        return binarySearch(cubeY);
+    /**
+     * @return amount of cubes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Makes the dense array cover the new range, leaving extra space at the end where the column grows
+     */
+    private void grow(int newMinY, int newMaxY, boolean growDown) {
+        int span = newMaxY - newMinY + 1;
+        int newLength = Math.max(span, dense.length * 2);
+        int newBase = growDown ? newMaxY + 1 - newLength : newMinY;
+        Chunk16Virtual.Cube16[] newDense = new Chunk16Virtual.Cube16[newLength];
+        if (count > 0) {
+            System.arraycopy(dense, minY - base, newDense, minY - newBase, maxY - minY + 1);
+        }
+        dense = newDense;
+        base = newBase;
+    }
+
+    private void toSparse() {
+        byCubeY = new IntObjectHashMap<>(Math.max(32, count * 2));
+        cubes = new ObjectArrayList<>(Math.max(32, count * 2));
+        // a little hack to make the buffer the type we want
+        cubes.buffer = new Chunk16Virtual.Cube16[cubes.buffer.length];
+        for (Chunk16Virtual.Cube16 cube : dense) {
+            if (cube != null) {
+                cubes.add(cube);
+                byCubeY.put(cube.getY(), cube);
+            }
+        }
+        dense = null;
+    }
+
+    private void putSparse(Chunk16Virtual.Cube16 cube) {
+        cubes.insert(binarySearch(cube.getY()), cube);
+        byCubeY.put(cube.getY(), cube);
+        count++;
+    }
+
+    /**
+     * @return internal array with all the cubes, in order of increasing Y. May contain nulls at any position,
+     * including positions between cubes.
+     */
+    public Chunk16Virtual.Cube16[] array() {
+        if (byCubeY != null) {
+            return (Chunk16Virtual.Cube16[]) cubes.buffer;
+        }
+        return dense;
     }
 
     /**
-     * Check if the target cube is stored here
-     *
      * @param cubeY the y coordinate of the cube
-     * @param searchIndex the index to search at (got form {@link #binarySearch(int)})
      *
-     * @return <code>true</code> if the cube is contained here, <code>false</code> otherwise
+     * @return index of the cube in {@link #array()}, or if it doesn't exist, the index of the first cube above it.
+     * May be equal to or larger than length of the array.
      */
-    private boolean contains(int cubeY, int searchIndex) {
-        return searchIndex < cubes.size() && cubes.get(searchIndex).getY() == cubeY;
+    public int indexOfY(int cubeY) {
+        if (byCubeY != null) {
+            return binarySearch(cubeY);
+        }
+        return Math.max(0, cubeY - base);
     }
 
     /**
@@ -0,0 +1,249 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed cube NBT with the cube coordinates and the LastHeightMap cut out, so that the same cube data can be
+ * written at other positions without compressing it again.
+ *
+ * <p>The output is a sequence of gzip members: compressed parts of the template with small uncompressed members
+ * holding the patched values between them. {@link java.util.zip.GZIPInputStream} reads concatenated members as a
+ * single stream.
+ */
+final class CubeNbtTemplate {
+
+    static final int SLOT_X = 0;
+    static final int SLOT_Y = 1;
+    static final int SLOT_Z = 2;
+    static final int SLOT_HEIGHT_MAP = 3;
+    private static final int SLOT_COUNT = 4;
+
+    private static final int HEIGHT_MAP_LENGTH = Coords.CUBE_SIZE * Coords.CUBE_SIZE;
+    // NBT headers of the tags, the patched value starts right after the header
+    private static final byte[][] SLOT_HEADERS = {
+            intTagHeader("x"),
+            intTagHeader("y"),
+            intTagHeader("z"),
+            intArrayTagHeader("LastHeightMap", HEIGHT_MAP_LENGTH)
+    };
+    private static final int[] SLOT_SIZES = {Integer.BYTES, Integer.BYTES, Integer.BYTES, HEIGHT_MAP_LENGTH * Integer.BYTES};
+
+    // slot IDs in the order they appear in the data
+    private final int[] slotOrder;
+    // compressed data between the slots, one more than there are slots
+    private final byte[][] parts;
+    private final int partsLength;
+
+    private CubeNbtTemplate(int[] slotOrder, byte[][] parts) {
+        this.slotOrder = slotOrder;
+        this.parts = parts;
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        this.partsLength = length;
+    }
+
+    /**
+     * Creates a template from uncompressed cube NBT
+     *
+     * @param nbt the uncompressed NBT data
+     * @param slots offsets of the slot values, from {@link #findSlots(byte[])}
+     *
+     * @return the template
+     */
+    static CubeNbtTemplate create(byte[] nbt, int[] slots) {
+        int[] order = new int[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            order[i] = i;
+        }
+        // insertion sort of 4 elements by offset
+        for (int i = 1; i < SLOT_COUNT; i++) {
+            for (int j = i; j > 0 && slots[order[j]] < slots[order[j - 1]]; j--) {
+                int tmp = order[j];
+                order[j] = order[j - 1];
+                order[j - 1] = tmp;
+            }
+        }
+        byte[][] parts = new byte[SLOT_COUNT + 1][];
+        int start = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            int slot = order[i];
+            parts[i] = gzip(nbt, start, slots[slot] - start);
+            start = slots[slot] + SLOT_SIZES[slot];
+        }
+        parts[SLOT_COUNT] = gzip(nbt, start, nbt.length - start);
+        return new CubeNbtTemplate(order, parts);
+    }
+
+    /**
+     * Finds where values of the patched tags are in uncompressed cube NBT. Each of the tags must occur exactly once,
+     * which isn't the case for cubes with tile entities.
+     *
+     * @param nbt the uncompressed NBT data
+     *
+     * @return offsets of the values, indexed by slot ID, or null if the data can't be used as a template
+     */
+    static int[] findSlots(byte[] nbt) {
+        int[] slots = new int[SLOT_COUNT];
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            int offset = findUnique(nbt, SLOT_HEADERS[slot]);
+            if (offset < 0 || offset + SLOT_HEADERS[slot].length + SLOT_SIZES[slot] > nbt.length) {
+                return null;
+            }
+            slots[slot] = offset + SLOT_HEADERS[slot].length;
+        }
+        // slots can't overlap unless the data is very unusual
+        for (int a = 0; a < SLOT_COUNT; a++) {
+            for (int b = a + 1; b < SLOT_COUNT; b++) {
+                if (slots[a] < slots[b] + SLOT_SIZES[b] && slots[b] < slots[a] + SLOT_SIZES[a]) {
+                    return null;
+                }
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @return copy of the data with all slot values set to 0, equal for cubes that can share a template
+     */
+    static byte[] maskSlots(byte[] nbt, int[] slots) {
+        byte[] masked = nbt.clone();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            Arrays.fill(masked, slots[slot], slots[slot] + SLOT_SIZES[slot], (byte) 0);
+        }
+        return masked;
+    }
+
+    /**
+     * @return the height map value of the data as a compressed gzip member, to be passed to
+     * {@link #write(int, int, int, byte[])}. The same for all cubes of a column
+     */
+    static byte[] heightMapMember(byte[] nbt, int[] slots) {
+        return gzip(nbt, slots[SLOT_HEIGHT_MAP], SLOT_SIZES[SLOT_HEIGHT_MAP]);
+    }
+
+    /**
+     * @return compressed cube data at the given position
+     */
+    byte[] write(int x, int y, int z, byte[] heightMapMember) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(partsLength + heightMapMember.length + 128);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            out.write(parts[i], 0, parts[i].length);
+            switch (slotOrder[i]) {
+                case SLOT_X:
+                    writeStoredInt(out, x);
+                    break;
+                case SLOT_Y:
+                    writeStoredInt(out, y);
+                    break;
+                case SLOT_Z:
+                    writeStoredInt(out, z);
+                    break;
+                case SLOT_HEIGHT_MAP:
+                    out.write(heightMapMember, 0, heightMapMember.length);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown slot " + slotOrder[i]);
+            }
+        }
+        out.write(parts[SLOT_COUNT], 0, parts[SLOT_COUNT].length);
+        return out.toByteArray();
+    }
+
+    int getCompressedSize() {
+        return partsLength;
+    }
+
+    /**
+     * Writes a gzip member with a single uncompressed deflate block containing the value
+     */
+    private static void writeStoredInt(ByteArrayOutputStream out, int value) {
+        byte[] data = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        // header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+        out.write(0x1f);
+        out.write(0x8b);
+        out.write(8);
+        writeIntLE(out, 0, 2);
+        writeIntLE(out, 0, 4);
+        out.write(0xff);
+        // final stored block: header, LEN, NLEN, data
+        out.write(1);
+        writeIntLE(out, data.length, 2);
+        writeIntLE(out, ~data.length, 2);
+        out.write(data, 0, data.length);
+        // trailer
+        writeIntLE(out, (int) crc.getValue(), 4);
+        writeIntLE(out, data.length, 4);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((value >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    private static byte[] gzip(byte[] data, int off, int len) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, len / 4));
+        try (GZIPOutputStream out = new GZIPOutputStream(baos)) {
+            out.write(data, off, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static int findUnique(byte[] data, byte[] pattern) {
+        int found = -1;
+        byte first = pattern[0];
+        int end = data.length - pattern.length;
+        outer:
+        for (int i = 0; i <= end; i++) {
+            if (data[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            if (found >= 0) {
+                return -1;
+            }
+            found = i;
+        }
+        return found;
+    }
+
+    private static byte[] intTagHeader(String name) {
+        return tagHeader(3, name, 0);
+    }
+
+    private static byte[] intArrayTagHeader(String name, int length) {
+        byte[] header = tagHeader(11, name, Integer.BYTES);
+        int off = header.length - Integer.BYTES;
+        header[off] = (byte) (length >>> 24);
+        header[off + 1] = (byte) (length >>> 16);
+        header[off + 2] = (byte) (length >>> 8);
+        header[off + 3] = (byte) length;
+        return header;
+    }
+
+    private static byte[] tagHeader(int type, String name, int extra) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[3 + nameBytes.length + extra];
+        header[0] = (byte) type;
+        header[1] = (byte) (nameBytes.length >>> 8);
+        header[2] = (byte) nameBytes.length;
+        System.arraycopy(nameBytes, 0, header, 3, nameBytes.length);
+        return header;
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import com.carrotsearch.hppc.IntHashSet;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of {@link CubeNbtTemplate}s, keyed by cube NBT data without the coordinates and height map.
+ * Memory of cached templates is reserved in {@link MemoryBudget#GLOBAL}, templates are only cached while it's free,
+ * and least recently used ones are dropped when the budget needs it. Thread safe.
+ */
+final class CubeTemplateCache implements MemoryBudget.Reclaimer {
+
+    private final Map<Key, CubeNbtTemplate> templates;
+    // hashes of data seen only once so far, see get()
+    private final IntHashSet seenOnce = new IntHashSet();
+    private final int maxSeenOnce;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    CubeTemplateCache(int maxSize) {
+        this.maxSeenOnce = maxSize * 16;
+        this.templates = new LinkedHashMap<Key, CubeNbtTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CubeNbtTemplate> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                MemoryBudget.GLOBAL.release(estimatedBytes(eldest.getKey(), eldest.getValue()));
+                return true;
+            }
+        };
+        MemoryBudget.GLOBAL.addReclaimer(this);
+    }
+
+    /**
+     * Returns template for the given data, creating it if it's not cached yet.
+     *
+     * @param nbt the uncompressed cube NBT
+     * @param slots the slots, from {@link CubeNbtTemplate#findSlots(byte[])}
+     *
+     * @return the template
+     */
+    CubeNbtTemplate getOrCreate(byte[] nbt, int[] slots) {
+        Key key = new Key(CubeNbtTemplate.maskSlots(nbt, slots));
+        CubeNbtTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (template != null) {
+            return template;
+        }
+        // compress outside of the lock, in the worst case 2 threads compress the same data
+        template = CubeNbtTemplate.create(nbt, slots);
+        put(key, template);
+        return template;
+    }
+
+    /**
+     * Returns template for the given data if the same data has been seen before. Creating a template for data that
+     * is never seen again would only add compression work, so a template is created only the second time.
+     *
+     * @param nbt the uncompressed cube NBT
+     * @param slots the slots, from {@link CubeNbtTemplate#findSlots(byte[])}
+     *
+     * @return the template, or null if the data should be compressed normally
+     */
+    CubeNbtTemplate get(byte[] nbt, int[] slots) {
+        Key key = new Key(CubeNbtTemplate.maskSlots(nbt, slots));
+        CubeNbtTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+            if (template == null) {
+                if (seenOnce.size() >= maxSeenOnce) {
+                    seenOnce.clear();
+                }
+                if (seenOnce.add(key.hash)) {
+                    misses.increment();
+                    return null;
+                }
+                seenOnce.remove(key.hash);
+            }
+        }
+        if (template == null) {
+            misses.increment();
+            template = CubeNbtTemplate.create(nbt, slots);
+            put(key, template);
+        } else {
+            hits.increment();
+            bytesSaved.add(nbt.length);
+        }
+        return template;
+    }
+
+    private void put(Key key, CubeNbtTemplate template) {
+        // templates only save compression work, other memory is never reclaimed for them
+        if (!MemoryBudget.GLOBAL.tryReserveFree(estimatedBytes(key, template))) {
+            return;
+        }
+        CubeNbtTemplate previous;
+        synchronized (templates) {
+            previous = templates.put(key, template);
+        }
+        if (previous != null) {
+            MemoryBudget.GLOBAL.release(estimatedBytes(key, previous));
+        }
+    }
+
+    @Override
+    public long reclaim(long bytes) {
+        // templates are never changed, so they can be dropped on any thread
+        long freed = 0;
+        synchronized (templates) {
+            Iterator<Map.Entry<Key, CubeNbtTemplate>> it = templates.entrySet().iterator();
+            while (freed < bytes && it.hasNext()) {
+                Map.Entry<Key, CubeNbtTemplate> e = it.next();
+                freed += estimatedBytes(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+        MemoryBudget.GLOBAL.release(freed);
+        return freed;
+    }
+
+    /**
+     * @return rough amount of heap memory used by a cached template and its key
+     */
+    private static long estimatedBytes(Key key, CubeNbtTemplate template) {
+        return 128 + key.data.length + template.getCompressedSize();
+    }
+
+    /**
+     * @return summary of hits, misses and uncompressed bytes that didn't need compressing
+     */
+    String getStats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return String.format("%d/%d cubes reused a cached template (%.1f%%), %d KiB of cube data not compressed again",
+                hitCount, total, total == 0 ? 0.0 : hitCount * 100.0 / total, bytesSaved.sum() >> 10);
+    }
+
+    void clear() {
+        long freed = 0;
+        synchronized (templates) {
+            for (Map.Entry<Key, CubeNbtTemplate> e : templates.entrySet()) {
+                freed += estimatedBytes(e.getKey(), e.getValue());
+            }
+            templates.clear();
+            seenOnce.clear();
+        }
+        MemoryBudget.GLOBAL.release(freed);
+        hits.reset();
+        misses.reset();
+        bytesSaved.reset();
+    }
+
+    private static final class Key {
+        private final byte[] data;
+        private final int hash;
+
+        Key(byte[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof Key && hash == ((Key) o).hash && Arrays.equals(data, ((Key) o).data));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package io.github.opencubicchunks.worldpainterplugin;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 import cubicchunks.regionlib.api.region.key.IKey;
 import cubicchunks.regionlib.api.region.key.IKeyProvider;
 import cubicchunks.regionlib.api.region.key.RegionKey;
@@ -13,6 +20,7 @@ import cubicchunks.regionlib.lib.factory.SimpleRegionFactory;
 import cubicchunks.regionlib.lib.provider.SharedCachedRegionProvider;
 import org.jnbt.ByteTag;
 import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
 import org.jnbt.NBTInputStream;
 import org.jnbt.NBTOutputStream;
 import org.pepsoft.minecraft.Chunk;
@@ -32,9 +40,9 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -44,7 +52,34 @@ public class CubicChunkStore implements ChunkStore {
     // note: we don't care about race conditions on this field, they shouldn't cause any issues,
     // beyond possibly keeping the wrong value in cache, which is not an issue
     private static volatile ChunkListHolder LAST_CHUNK_LIST;
+    // there are only a few variants of empty cubes, differing in flags like populated or initLightDone
+    private static final CubeTemplateCache EMPTY_CUBE_TEMPLATES = new CubeTemplateCache(16);
+    // identical cubes in different positions are compressed only once, set the size to 0 to disable
+    private static final int CUBE_TEMPLATE_CACHE_SIZE = Integer.getInteger("cubicchunks.cubeCacheSize", 1024);
+    private static final CubeTemplateCache CUBE_TEMPLATES = CUBE_TEMPLATE_CACHE_SIZE > 0 ? new CubeTemplateCache(CUBE_TEMPLATE_CACHE_SIZE) : null;
     private final Path path;
+    private final Chunk16Virtual.CubeSource cubeSource = new Chunk16Virtual.CubeSource() {
+        @Override
+        public CompoundTag loadCube(int cubeX, int cubeY, int cubeZ) {
+            Optional<ByteBuffer> data = load(section3d, new EntryLocation3D(cubeX, cubeY, cubeZ));
+            return data.map(CubicChunkStore.this::readNbt).orElse(null);
+        }
+
+        @Override
+        public void saveCube(int cubeX, int cubeY, int cubeZ, CompoundTag tag) {
+            byte[] compressed = compress(tag);
+            if (columnCache == null) {
+                CubicChunkStore.this.saveCube(cubeX, cubeY, cubeZ, compressed);
+            } else {
+                columnCache.writeThrough(cubeX, cubeZ, () -> CubicChunkStore.this.saveCube(cubeX, cubeY, cubeZ, compressed));
+            }
+        }
+    };
+    // decoded columns returned by getChunk() and loadChunk(), null if disabled
+    private final ColumnCache columnCache = ColumnCache.SIZE > 0 ? new ColumnCache(ColumnCache.SIZE, this::writeColumn) : null;
+    // loads columns into the column cache ahead of requests, null if disabled
+    private final ColumnPrefetcher prefetcher = columnCache != null && ColumnPrefetcher.ENABLED
+            ? new ColumnPrefetcher(columnCache, this::loadChunkForPrefetch) : null;
     private SaveSection2D section2d;
     private SaveSection3D section3d;
     private final int minHeight, maxHeight;
@@ -114,6 +149,11 @@ public class CubicChunkStore implements ChunkStore {
         return chunks.map;
     }
 
+    private synchronized ChunkListHolder getChunkList() {
+        chunksLazyInit();
+        return chunks;
+    }
+
     private synchronized List<MinecraftCoords> getChunkOrder() {
         chunksLazyInit();
         return chunks.chunkOrder;
@@ -129,6 +169,65 @@ public class CubicChunkStore implements ChunkStore {
         return getChunks().keySet();
     }
 
+    /**
+     * Finds columns in a rectangle of chunk positions. The cost depends on the size of the rectangle and the result,
+     * not on the size of the world.
+     *
+     * @param minX the lowest chunk x position, inclusive
+     * @param minZ the lowest chunk z position, inclusive
+     * @param maxX the highest chunk x position, inclusive
+     * @param maxZ the highest chunk z position, inclusive
+     *
+     * @return positions of existing columns in the rectangle, in no particular order
+     */
+    public List<MinecraftCoords> getChunkCoords(int minX, int minZ, int maxX, int maxZ) {
+        return getChunkList().columnsIn(minX, minZ, maxX, maxZ);
+    }
+
+    /**
+     * Finds columns that have blocks in a rectangle of block positions.
+     *
+     * @param minBlockX the lowest block x position, inclusive
+     * @param minBlockZ the lowest block z position, inclusive
+     * @param maxBlockX the highest block x position, inclusive
+     * @param maxBlockZ the highest block z position, inclusive
+     *
+     * @return positions of existing columns in the rectangle, in no particular order
+     */
+    public List<MinecraftCoords> getChunkCoordsInBlockArea(int minBlockX, int minBlockZ, int maxBlockX, int maxBlockZ) {
+        return getChunkCoords(Coords.blockToCube(minBlockX), Coords.blockToCube(minBlockZ),
+                Coords.blockToCube(maxBlockX), Coords.blockToCube(maxBlockZ));
+    }
+
+    /**
+     * Finds cubes in a box of cube positions.
+     *
+     * @param minX the lowest cube x position, inclusive
+     * @param minY the lowest cube y position, inclusive
+     * @param minZ the lowest cube z position, inclusive
+     * @param maxX the highest cube x position, inclusive
+     * @param maxY the highest cube y position, inclusive
+     * @param maxZ the highest cube z position, inclusive
+     *
+     * @return positions of existing cubes in the box, in no particular order
+     */
+    public List<EntryLocation3D> getCubesInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        List<EntryLocation3D> result = new ArrayList<>();
+        Map<MinecraftCoords, ArrayList<Integer>> chunks = getChunks();
+        for (MinecraftCoords pos : getChunkCoords(minX, minZ, maxX, maxZ)) {
+            ArrayList<Integer> cubeYs = chunks.get(pos);
+            synchronized (this) {
+                for (int i = 0, size = cubeYs.size(); i < size; i++) {
+                    int y = cubeYs.get(i);
+                    if (y >= minY && y <= maxY) {
+                        result.add(new EntryLocation3D(pos.x, y, pos.z));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public boolean visitChunks(ChunkVisitor chunkVisitor) {
         return visitChunks(chunkVisitor, EditMode.READONLY);
@@ -140,44 +239,210 @@ public class CubicChunkStore implements ChunkStore {
     }
 
     private boolean visitChunks(ChunkVisitor chunkVisitor, EditMode editMode) {
+        // cubes with changed blocks, light is updated in them once the visitor is done
+        Map<MinecraftCoords, IntArrayList> changedCubes = editMode == EditMode.EDITABLE && CubicLightEngine.ENABLED
+                ? new HashMap<>() : null;
+        boolean completed = true;
+        for (MinecraftCoords pos : getChunkOrder()) {
+            Chunk16Virtual chunk = loadChunk(pos.x, pos.z, editMode, null);
+            if (chunk != null) {
+                // the column is counted in the memory budget while the visitor works on it
+                long bytes = chunk.estimatedBytes();
+                MemoryBudget.GLOBAL.reserve(bytes);
+                try {
+                    completed = chunkVisitor.visitChunk(chunk);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    MemoryBudget.GLOBAL.release(bytes);
+                }
+                if (changedCubes != null) {
+                    IntArrayList changed = chunk.getChangedCubes();
+                    if (!changed.isEmpty()) {
+                        changedCubes.put(pos, changed);
+                    }
+                }
+                if (!completed) {
+                    break;
+                }
+            }
+        }
+        if (changedCubes != null && !changedCubes.isEmpty()) {
+            CubicLightEngine.relightChangedCubes(this, changedCubes);
+        }
+        return completed;
+    }
+
+    /**
+     * Visits all chunks read-only, reusing block storage of visited chunks for the next ones, so that visiting many
+     * chunks creates less garbage.
+     *
+     * <p>A chunk is only valid until the visitor returns, after that its memory is reused and it reads as air.
+     * Visitors may keep materials, entities, tile entities and {@link Chunk16Virtual.CubeSnapshot}s, which don't
+     * reference the chunk, but not the chunk itself.
+     *
+     * @param chunkVisitor the visitor
+     *
+     * @return true if all chunks were visited, false if the visitor stopped early
+     */
+    public boolean visitChunksPooled(ChunkVisitor chunkVisitor) {
+        BlockArrayPool pool = new BlockArrayPool();
         for (MinecraftCoords pos : getChunkOrder()) {
-            Chunk16Virtual chunk = loadChunk(pos.x, pos.z, editMode);
+            Chunk16Virtual chunk = loadChunk(pos.x, pos.z, EditMode.READONLY, pool);
             if (chunk != null) {
+                long bytes = chunk.estimatedBytes();
+                MemoryBudget.GLOBAL.reserve(bytes);
                 try {
                     if (!chunkVisitor.visitChunk(chunk)) {
                         return false;
                     }
                 } catch (Exception e) {
                     throw new RuntimeException(e);
+                } finally {
+                    chunk.releaseToPool();
+                    MemoryBudget.GLOBAL.release(bytes);
                 }
             }
         }
         return true;
     }
 
+    /**
+     * Visits cubes in a range of Y positions one at a time, in the order they are stored in region files, without
+     * loading whole columns. Memory use doesn't depend on the size of the world, and reading is mostly sequential.
+     *
+     * <p>Each cube is given to the visitor as a column that contains only that cube, and is valid only until the
+     * visitor returns. If the cube was changed, it's saved when the visitor returns. Blocks outside the cube read as
+     * air, and changes to them are not saved. Column data like biomes and the opacity index are not loaded or saved.
+     *
+     * @param visitor the visitor
+     * @param yMin the lowest cube Y position to visit, inclusive
+     * @param yMax the highest cube Y position to visit, inclusive
+     *
+     * @return true if all cubes were visited, false if the visitor stopped early
+     */
+    public boolean visitCubes(CubeVisitor visitor, int yMin, int yMax) {
+        // only names of region files are listed up front, cubes are found one region at a time
+        List<String> regionNames;
+        try (Stream<Path> files = Files.list(path.resolve("region3d"))) {
+            regionNames = files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".3dr"))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        CubePosProvider positions = new CubePosProvider();
+        // cubes with changed blocks, light is updated in them once the visitor is done
+        Map<MinecraftCoords, IntArrayList> changedCubes = CubicLightEngine.ENABLED ? new HashMap<>() : null;
+        BlockArrayPool pool = new BlockArrayPool();
+        boolean completed = true;
+        for (String regionName : regionNames) {
+            RegionKey regionKey = new RegionKey(regionName);
+            if (!positions.isValid(regionKey)) {
+                continue;
+            }
+            int regionMinY = positions.fromRegionAndId(regionKey, 0).getEntryY();
+            if (regionMinY > yMax || regionMinY + 15 < yMin) {
+                continue;
+            }
+            for (int id = 0; id < CubePosProvider.ENTRIES_PER_REGION && completed; id++) {
+                EntryLocation3D location = positions.fromRegionAndId(regionKey, id);
+                if (location.getEntryY() >= yMin && location.getEntryY() <= yMax) {
+                    completed = visitCube(visitor, location, pool, changedCubes);
+                }
+            }
+            if (!completed) {
+                break;
+            }
+        }
+        if (changedCubes != null && !changedCubes.isEmpty()) {
+            CubicLightEngine.relightChangedCubes(this, changedCubes);
+        }
+        return completed;
+    }
+
+    /**
+     * Gives one cube to a cube visitor, if it exists, and saves it if it was changed
+     *
+     * @return false if the visitor wants to stop
+     */
+    private boolean visitCube(CubeVisitor visitor, EntryLocation3D location, BlockArrayPool pool,
+                              Map<MinecraftCoords, IntArrayList> changedCubes) {
+        if (columnCache != null) {
+            columnCache.writeBack(location.getEntryX(), location.getEntryZ());
+        }
+        Optional<ByteBuffer> data = load(section3d, location);
+        if (!data.isPresent()) {
+            return true;
+        }
+        int x = location.getEntryX(), y = location.getEntryY(), z = location.getEntryZ();
+        CompoundTag cubeTag = readNbt(data.get());
+        IntObjectHashMap<CompoundTag> cubeTags = new IntObjectHashMap<>(1);
+        cubeTags.put(y, cubeTag);
+        Chunk16Virtual column = new Chunk16Virtual(new Chunk16Virtual.SerializedColumn(makeFakeColumnNBT(cubeTag), cubeTags),
+                x, z, minHeight, maxHeight, EditMode.EDITABLE, pool);
+        try {
+            boolean completed = visitor.visitCube(column, y);
+            CompoundTag changed = column.serializeDetachedCube(y);
+            if (changed != null) {
+                byte[] compressed = compress(changed);
+                if (columnCache == null) {
+                    saveCube(x, y, z, compressed);
+                } else {
+                    columnCache.writeThrough(x, z, () -> saveCube(x, y, z, compressed));
+                }
+            }
+            if (changedCubes != null && column.getChangedCubes().contains(y)) {
+                changedCubes.computeIfAbsent(new MinecraftCoords(x, z), k -> new IntArrayList()).add(y);
+            }
+            return completed;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            column.releaseToPool();
+        }
+    }
+
+    /**
+     * Saves a column. When the column cache is enabled and this is the cached instance, it's only written when it's
+     * evicted from the cache, or the store is flushed or closed.
+     */
     @Override
     public void saveChunk(Chunk chunk) {
-        Chunk16Virtual.SerializedColumn serialized = ((Chunk16Virtual) chunk).serialize();
+        Chunk16Virtual column = (Chunk16Virtual) chunk;
+        if (columnCache == null) {
+            writeColumn(column);
+        } else if (!columnCache.markDirty(column)) {
+            // another instance of a cached column was saved, the cached one is outdated, unless it has unsaved changes
+            columnCache.writeThrough(column.getxPos(), column.getzPos(), () -> writeColumn(column));
+        }
+    }
+
+    private void writeColumn(Chunk16Virtual chunk) {
+        Chunk16Virtual.SerializedColumn serialized = chunk.serialize();
         int x = chunk.getxPos();
         int z = chunk.getzPos();
-        for (Map.Entry<Integer, CompoundTag> data : serialized.cubeTags.entrySet()) {
-            int y = data.getKey();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try (NBTOutputStream out = new NBTOutputStream(new BufferedOutputStream(new GZIPOutputStream(baos)))) {
-                out.writeTag(data.getValue());
-            } catch (IOException e) {
-                throw new RuntimeException("I/O error saving chunk", e);
+        // the same for all cubes of the column, compressed when first needed
+        byte[] heightMap = null;
+        for (IntObjectCursor<CompoundTag> data : serialized.cubeTags) {
+            if (CUBE_TEMPLATES == null) {
+                saveCube(x, data.key, z, compress(data.value));
+                continue;
             }
-            try {
-                ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
-                section3d.save(new EntryLocation3D(x, y, z), buffer);
-            } catch (IOException e) {
-                throw new RuntimeException("I/O error saving chunk", e);
+            byte[] nbt = writeUncompressedNbt(data.value);
+            int[] slots = CubeNbtTemplate.findSlots(nbt);
+            CubeNbtTemplate template = slots == null ? null : CUBE_TEMPLATES.get(nbt, slots);
+            if (template == null) {
+                saveCube(x, data.key, z, gzip(nbt));
+                continue;
             }
-            // TODO: is this thread safe?
-            synchronized (this) {
-                getChunks().computeIfAbsent(new MinecraftCoords(x, z), p -> new ArrayList<>()).add(y);
+            if (heightMap == null) {
+                heightMap = CubeNbtTemplate.heightMapMember(nbt, slots);
             }
+            saveCube(x, data.key, z, template.write(x, data.key, z, heightMap));
+        }
+        if (!serialized.emptyCubeYs.isEmpty()) {
+            saveEmptyCubes(x, z, serialized.emptyCubeTag, serialized.emptyCubeYs);
         }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (NBTOutputStream out = new NBTOutputStream(new BufferedOutputStream(new GZIPOutputStream(baos)))) {
@@ -193,6 +458,109 @@ public class CubicChunkStore implements ChunkStore {
         }
     }
 
+    private void saveCube(int x, int y, int z, byte[] compressed) {
+        try {
+            section3d.save(new EntryLocation3D(x, y, z), ByteBuffer.wrap(compressed));
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error saving chunk", e);
+        }
+        // TODO: is this thread safe?
+        synchronized (this) {
+            ChunkListHolder chunkList = getChunkList();
+            MinecraftCoords pos = new MinecraftCoords(x, z);
+            ArrayList<Integer> cubeYs = chunkList.map.get(pos);
+            if (cubeYs == null) {
+                chunkList.map.put(pos, cubeYs = new ArrayList<>());
+                chunkList.addToGrid(pos);
+            }
+            // cubes saved again, like after relighting, are already listed
+            if (!cubeYs.contains(y)) {
+                cubeYs.add(y);
+            }
+        }
+    }
+
+    /**
+     * Writes copies of the same empty cube at multiple Y positions, compressing the data only once per distinct
+     * empty cube
+     */
+    private void saveEmptyCubes(int x, int z, CompoundTag emptyCubeTag, IntArrayList cubeYs) {
+        byte[] nbt = writeUncompressedNbt(emptyCubeTag);
+        int[] slots = CubeNbtTemplate.findSlots(nbt);
+        if (slots == null) {
+            // shouldn't happen for empty cubes, but if it does, just write them normally
+            CompoundTag level = (CompoundTag) emptyCubeTag.getTag("Level");
+            for (IntCursor y : cubeYs) {
+                level.setTag("y", new IntTag("y", y.value));
+                saveCube(x, y.value, z, compress(emptyCubeTag));
+            }
+            return;
+        }
+        CubeNbtTemplate template = EMPTY_CUBE_TEMPLATES.getOrCreate(nbt, slots);
+        byte[] heightMap = CubeNbtTemplate.heightMapMember(nbt, slots);
+        for (IntCursor y : cubeYs) {
+            saveCube(x, y.value, z, template.write(x, y.value, z, heightMap));
+        }
+    }
+
+    private static byte[] compress(CompoundTag tag) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (NBTOutputStream out = new NBTOutputStream(new BufferedOutputStream(new GZIPOutputStream(baos)))) {
+            out.writeTag(tag);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error saving chunk", e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(baos)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error saving chunk", e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Logs how many cubes were written from the cube template cache since the last call, and clears the cache.
+     * Called at the end of an export.
+     */
+    public static void logAndResetCubeCacheStats() {
+        if (CUBE_TEMPLATES == null) {
+            return;
+        }
+        LOGGER.info("Cube deduplication: " + CUBE_TEMPLATES.getStats());
+        CUBE_TEMPLATES.clear();
+    }
+
+    /**
+     * Logs memory budget usage and sizes of loaded columns since the last call. Called at the end of an export.
+     */
+    public static void logAndResetMemoryStats() {
+        LOGGER.info("Memory: " + MemoryBudget.GLOBAL.getStats());
+        MemoryBudget.GLOBAL.resetStats();
+        if (ColumnCache.SIZE > 0) {
+            LOGGER.info("Column cache: " + ColumnCache.getStats());
+            ColumnCache.resetStats();
+        }
+        if (ColumnCache.SIZE > 0 && ColumnPrefetcher.ENABLED) {
+            LOGGER.info("Column prefetching: " + ColumnPrefetcher.getStats());
+            ColumnPrefetcher.resetStats();
+        }
+    }
+
+    private static byte[] writeUncompressedNbt(CompoundTag tag) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
+        try (NBTOutputStream out = new NBTOutputStream(baos)) {
+            out.writeTag(tag);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error saving chunk", e);
+        }
+        return baos.toByteArray();
+    }
+
     @Override
     public void doInTransaction(Runnable task) {
         task.run();
@@ -200,7 +568,13 @@ public class CubicChunkStore implements ChunkStore {
 
     @Override
     public void flush() {
-        close();
+        if (prefetcher != null) {
+            prefetcher.stop();
+        }
+        if (columnCache != null) {
+            columnCache.clear();
+        }
+        closeSections();
         try {
             init();
         } catch (IOException e) {
@@ -213,31 +587,170 @@ public class CubicChunkStore implements ChunkStore {
         return getChunks().containsKey(new MinecraftCoords(x, z));
     }
 
+    /**
+     * Loads a column for passes that look at its neighbours, like post-processing. With prefetching enabled, the
+     * columns around it are loaded into the column cache in the background.
+     */
     @Override
     public Chunk getChunk(int x, int z) {
-        return loadChunk(x, z, EditMode.EDITABLE);
+        Chunk16Virtual column = loadChunk(x, z, EditMode.EDITABLE);
+        if (prefetcher != null && column != null) {
+            prefetchNeighbors(x, z);
+        }
+        return column;
+    }
+
+    /**
+     * Hints that a column will be needed soon. With the column cache and prefetching enabled, it's loaded into the
+     * cache in the background, otherwise nothing happens.
+     *
+     * @param x column x position
+     * @param z column z position
+     */
+    public void prefetchChunk(int x, int z) {
+        if (prefetcher != null && isChunkPresent(x, z)) {
+            prefetcher.prefetch(x, z);
+        }
     }
 
+    /**
+     * Hints that the 8 columns around a column will be needed soon, see {@link #prefetchChunk(int, int)}.
+     *
+     * @param x column x position
+     * @param z column z position
+     */
+    public void prefetchNeighbors(int x, int z) {
+        if (prefetcher == null) {
+            return;
+        }
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                if (dx != 0 || dz != 0) {
+                    prefetchChunk(x + dx, z + dz);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a column. When the column cache is enabled, editable columns are returned from the cache, and loaded
+     * columns are added to it. Read only columns are always loaded from the store, with changes of the cached column
+     * written first, so that they can't change the shared cached instance.
+     */
     public Chunk16Virtual loadChunk(int x, int z, EditMode editMode) {
-        Map<Integer, CompoundTag> cubeTags = Optional.ofNullable(getChunks().get(new MinecraftCoords(x, z))).map(list ->
-                list.stream()
-                        .map(y -> new EntryLocation3D(x, y, z))
-                        .map(pos -> new SimpleEntry<>(pos.getEntryY(), load(section3d, pos)))
-                        .filter(e -> e.getValue().isPresent())
-                        .map(e -> new SimpleEntry<>(e.getKey(), e.getValue().get()))
-                        .map(e -> new SimpleEntry<>(e.getKey(), readNbt(e.getValue())))
-                        .collect(Collectors.toMap(SimpleEntry::getKey, SimpleEntry::getValue))
-        ).orElse(new HashMap<>());
+        if (columnCache == null || editMode == EditMode.READONLY) {
+            return loadChunk(x, z, editMode, null);
+        }
+        Chunk16Virtual column = columnCache.get(x, z);
+        if (column != null) {
+            return column;
+        }
+        column = loadChunk(x, z, EditMode.EDITABLE, null);
+        return column == null ? null : columnCache.put(column);
+    }
+
+    /**
+     * Loads a column like {@link #loadChunk(int, int, EditMode)}, but without using the column cache, for passes over
+     * many columns that would only push other columns out of it
+     */
+    Chunk16Virtual loadChunkUncached(int x, int z, EditMode editMode) {
+        return loadChunk(x, z, editMode, null);
+    }
+
+    /**
+     * Loads a column from region files, bypassing the column cache, but with changes of the cached column written
+     * first
+     */
+    private Chunk16Virtual loadChunk(int x, int z, EditMode editMode, BlockArrayPool pool) {
+        if (columnCache != null) {
+            columnCache.writeBack(x, z);
+        }
+        Chunk16Virtual column = readChunk(x, z, editMode, pool);
+        if (column != null) {
+            MemoryBudget.GLOBAL.onColumnLoaded(column.estimatedBytes());
+        }
+        return column;
+    }
+
+    /**
+     * Loads a column for the prefetcher, on its thread. Cached columns, which may be dirty and in use, are skipped, and
+     * neither the cache nor the memory budget are touched, the prefetcher only adds the column if there is room for
+     * it.
+     */
+    private Chunk16Virtual loadChunkForPrefetch(int x, int z) {
+        if (columnCache.contains(x, z)) {
+            return null;
+        }
+        return readChunk(x, z, EditMode.EDITABLE, null);
+    }
+
+    /**
+     * Reads a column from region files as it is stored
+     */
+    private Chunk16Virtual readChunk(int x, int z, EditMode editMode, BlockArrayPool pool) {
+        ArrayList<Integer> cubeYs = getChunks().get(new MinecraftCoords(x, z));
+        if (cubeYs == null) {
+            return null;
+        }
+        IntObjectHashMap<CompoundTag> cubeTags = new IntObjectHashMap<>(cubeYs.size());
+        for (int i = 0, size = cubeYs.size(); i < size; i++) {
+            int y = cubeYs.get(i);
+            Optional<ByteBuffer> data = load(section3d, new EntryLocation3D(x, y, z));
+            if (data.isPresent()) {
+                cubeTags.put(y, readNbt(data.get()));
+            }
+        }
 
         if (cubeTags.isEmpty()) {
             return null;
         }
-        CompoundTag columnTag = load(section2d, new EntryLocation2D(x, z))
-                .map(this::readNbt)
-                .orElseGet(() -> makeFakeColumnNBT(cubeTags.values().iterator().next()));
+        Optional<ByteBuffer> columnData = load(section2d, new EntryLocation2D(x, z));
+        CompoundTag columnTag = columnData.isPresent()
+                ? readNbt(columnData.get())
+                : makeFakeColumnNBT(cubeTags.values().iterator().next().value);
 
 
-        return new Chunk16Virtual(new Chunk16Virtual.SerializedColumn(columnTag, cubeTags), x, z, minHeight, maxHeight, editMode);
+        return new Chunk16Virtual(new Chunk16Virtual.SerializedColumn(columnTag, cubeTags), x, z, minHeight, maxHeight, editMode, pool);
+    }
+
+    /**
+     * Loads a column in streaming window mode, where cubes are decoded only when they are accessed, and at most the
+     * given amount of them is kept decoded. Changed cubes are written back to this store when they are evicted.
+     *
+     * @param x column x position
+     * @param z column z position
+     * @param editMode edit mode of the column
+     * @param maxLoadedCubes the maximum amount of decoded cubes
+     *
+     * @return the column, or null if it doesn't exist
+     */
+    public Chunk16Virtual loadChunkStreaming(int x, int z, EditMode editMode, int maxLoadedCubes) {
+        if (columnCache != null) {
+            columnCache.writeBack(x, z);
+        }
+        ArrayList<Integer> cubeYs = getChunks().get(new MinecraftCoords(x, z));
+        if (cubeYs == null || cubeYs.isEmpty()) {
+            return null;
+        }
+        Optional<ByteBuffer> columnData = load(section2d, new EntryLocation2D(x, z));
+        CompoundTag columnTag;
+        if (columnData.isPresent()) {
+            columnTag = readNbt(columnData.get());
+        } else {
+            CompoundTag cubeTag = cubeSource.loadCube(x, cubeYs.get(0), z);
+            if (cubeTag == null) {
+                return null;
+            }
+            columnTag = makeFakeColumnNBT(cubeTag);
+        }
+        IntHashSet storedCubeYs = new IntHashSet(cubeYs.size());
+        for (int i = 0, size = cubeYs.size(); i < size; i++) {
+            storedCubeYs.add(cubeYs.get(i));
+        }
+        Chunk16Virtual column = new Chunk16Virtual(new Chunk16Virtual.SerializedColumn(columnTag, new IntObjectHashMap<>()),
+                x, z, minHeight, maxHeight, editMode);
+        column.setStreamingWindow(cubeSource, maxLoadedCubes, storedCubeYs);
+        return column;
     }
 
     private <T extends IKey<T>> Optional<ByteBuffer> load(SaveSection<?, T> save, T loc) {
@@ -275,6 +788,16 @@ public class CubicChunkStore implements ChunkStore {
 
     @Override
     public void close() {
+        if (prefetcher != null) {
+            prefetcher.stop();
+        }
+        if (columnCache != null) {
+            columnCache.close();
+        }
+        closeSections();
+    }
+
+    private void closeSections() {
         try {
             section2d.close();
         } catch (IOException e) {
@@ -287,9 +810,27 @@ public class CubicChunkStore implements ChunkStore {
         }
     }
 
+    /**
+     * Visitor of single cubes, see {@link #visitCubes(CubeVisitor, int, int)}
+     */
+    public interface CubeVisitor {
+        /**
+         * @param column a column that contains only the visited cube
+         * @param cubeY y position of the visited cube
+         *
+         * @return true to continue visiting cubes, false to stop
+         */
+        boolean visitCube(Chunk16Virtual column, int cubeY) throws Exception;
+    }
+
     private static class ChunkListHolder {
+        // columns are indexed in cells of the same size as region2d files
+        private static final int GRID_CELL_BITS = 5;
+
         Map<MinecraftCoords, ArrayList<Integer>> map;
         List<MinecraftCoords> chunkOrder;
+        // grid cell key -> columns in that cell
+        private final LongObjectHashMap<List<MinecraftCoords>> regionGrid = new LongObjectHashMap<>();
 
         Path path;
 
@@ -297,6 +838,57 @@ public class CubicChunkStore implements ChunkStore {
             this.map = chunks;
             this.chunkOrder = chunkOrder;
             this.path = path;
+            for (MinecraftCoords pos : chunkOrder) {
+                addToGrid(pos);
+            }
+        }
+
+        private static long gridKey(int cellX, int cellZ) {
+            return (long) cellX << 32 | cellZ & 0xFFFFFFFFL;
+        }
+
+        synchronized void addToGrid(MinecraftCoords pos) {
+            long key = gridKey(pos.x >> GRID_CELL_BITS, pos.z >> GRID_CELL_BITS);
+            List<MinecraftCoords> cell = regionGrid.get(key);
+            if (cell == null) {
+                regionGrid.put(key, cell = new ArrayList<>());
+            }
+            cell.add(pos);
+        }
+
+        synchronized List<MinecraftCoords> columnsIn(int minX, int minZ, int maxX, int maxZ) {
+            List<MinecraftCoords> result = new ArrayList<>();
+            if (minX > maxX || minZ > maxZ) {
+                return result;
+            }
+            int minCellX = minX >> GRID_CELL_BITS, maxCellX = maxX >> GRID_CELL_BITS;
+            int minCellZ = minZ >> GRID_CELL_BITS, maxCellZ = maxZ >> GRID_CELL_BITS;
+            long cellCount = ((long) maxCellX - minCellX + 1) * ((long) maxCellZ - minCellZ + 1);
+            if (cellCount > regionGrid.size()) {
+                // rectangle larger than the world, going through existing cells is faster
+                for (ObjectCursor<List<MinecraftCoords>> cell : regionGrid.values()) {
+                    addColumnsIn(cell.value, minX, minZ, maxX, maxZ, result);
+                }
+                return result;
+            }
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                    List<MinecraftCoords> cell = regionGrid.get(gridKey(cellX, cellZ));
+                    if (cell != null) {
+                        addColumnsIn(cell, minX, minZ, maxX, maxZ, result);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static void addColumnsIn(List<MinecraftCoords> cell, int minX, int minZ, int maxX, int maxZ,
+                List<MinecraftCoords> result) {
+            for (MinecraftCoords pos : cell) {
+                if (pos.x >= minX && pos.x <= maxX && pos.z >= minZ && pos.z <= maxZ) {
+                    result.add(pos);
+                }
+            }
         }
     }
 
@@ -306,18 +898,41 @@ public class CubicChunkStore implements ChunkStore {
         private static final int LOC_BITMASK = (1 << LOC_BITS) - 1;
         public static final int ENTRIES_PER_REGION = (1 << LOC_BITS) * (1 << LOC_BITS) * (1 << LOC_BITS);
 
+        // keys are requested for all entries of one region before moving to the next one, so the name of the last
+        // region is only parsed once
+        private volatile RegionOrigin lastRegion;
+
         @Override
         public EntryLocation3D fromRegionAndId(RegionKey regionKey, int id) throws IllegalArgumentException {
+            String name = regionKey.getName();
+            RegionOrigin origin = lastRegion;
+            if (origin == null || !origin.name.equals(name)) {
+                int[] pos = parseRegionName(name);
+                origin = new RegionOrigin(name, pos[0] << LOC_BITS, pos[1] << LOC_BITS, pos[2] << LOC_BITS);
+                lastRegion = origin;
+            }
+
+            int relativeX = id >>> LOC_BITS * 2;
+            int relativeY = (id >>> LOC_BITS) & LOC_BITMASK;
+            int relativeZ = id & LOC_BITMASK;
+            return new EntryLocation3D(
+                    origin.minX | relativeX,
+                    origin.minY | relativeY,
+                    origin.minZ | relativeZ);
+        }
 
+        /**
+         * @return region x, y and z position from a region file name
+         */
+        private static int[] parseRegionName(String s) throws IllegalArgumentException {
             int[] pos = new int[3];
-            String s = regionKey.getName();
 
             int len = s.length();
 
             int i = 0;
             for (int part = 0; part < 3; part++) {
                 if (i >= len) {
-                    throw new IllegalArgumentException("Invalid name " + regionKey.getName());
+                    throw new IllegalArgumentException("Invalid name " + s);
                 }
 
                 int numberStartIdx = i;
@@ -333,7 +948,7 @@ public class CubicChunkStore implements ChunkStore {
                     i++;
                 }
                 if (i == start) {
-                    throw new IllegalArgumentException("Invalid name " + regionKey.getName());
+                    throw new IllegalArgumentException("Invalid name " + s);
                 }
 
                 int numberEndIdx = i;
@@ -342,7 +957,7 @@ public class CubicChunkStore implements ChunkStore {
                 // dot separator (except last number)
                 if (part < 2) {
                     if (i >= len || s.charAt(i) != '.') {
-                        throw new IllegalArgumentException("Invalid name " + regionKey.getName());
+                        throw new IllegalArgumentException("Invalid name " + s);
                     }
                     i++;
                 }
@@ -350,16 +965,9 @@ public class CubicChunkStore implements ChunkStore {
 
             // after third number we should be at ".3dr"
             if (!s.startsWith(".3dr", i)) {
-                throw new IllegalArgumentException("Invalid name " + regionKey.getName());
+                throw new IllegalArgumentException("Invalid name " + s);
             }
-
-            int relativeX = id >>> LOC_BITS * 2;
-            int relativeY = (id >>> LOC_BITS) & LOC_BITMASK;
-            int relativeZ = id & LOC_BITMASK;
-            return new EntryLocation3D(
-                    pos[0] << LOC_BITS | relativeX,
-                    pos[1] << LOC_BITS | relativeY,
-                    pos[2] << LOC_BITS | relativeZ);
+            return pos;
         }
 
         @Override
@@ -405,5 +1013,17 @@ public class CubicChunkStore implements ChunkStore {
             // after third number we should be at ".3dr"
             return s.startsWith(".3dr", i);
         }
+
+        private static final class RegionOrigin {
+            final String name;
+            final int minX, minY, minZ;
+
+            RegionOrigin(String name, int minX, int minY, int minZ) {
+                this.name = name;
+                this.minX = minX;
+                this.minY = minY;
+                this.minZ = minZ;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -233,5 +233,8 @@ public class CubicChunksPlatformProvider extends AbstractPlugin implements Block
             Arrays.asList(SURVIVAL, CREATIVE, ADVENTURE, HARDCORE),
             Arrays.asList(DEFAULT, FLAT, LARGE_BIOMES, AMPLIFIED, CUSTOM, NETHER, END),
             Arrays.asList(DIM_NORMAL, DIM_NETHER, DIM_END),
-            EnumSet.of(BIOMES_3D, PRECALCULATED_LIGHT, SET_SPAWN_POINT, BLOCK_BASED, SEED, POPULATE));
+            // with the cubic light engine enabled, light is calculated by the exporter after all regions are written
+            CubicLightEngine.ENABLED
+                    ? EnumSet.of(BIOMES_3D, SET_SPAWN_POINT, BLOCK_BASED, SEED, POPULATE)
+                    : EnumSet.of(BIOMES_3D, PRECALCULATED_LIGHT, SET_SPAWN_POINT, BLOCK_BASED, SEED, POPULATE));
 }
\ No newline at end of file
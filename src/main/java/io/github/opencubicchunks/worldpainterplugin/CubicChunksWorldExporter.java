@@ -1,6 +1,7 @@
 package io.github.opencubicchunks.worldpainterplugin;
 
 import org.pepsoft.minecraft.ChunkFactory;
+import org.pepsoft.minecraft.MinecraftCoords;
 import org.pepsoft.util.FileUtils;
 import org.pepsoft.util.ProgressReceiver;
 import org.pepsoft.worldpainter.*;
@@ -160,6 +161,9 @@ public class CubicChunksWorldExporter extends AbstractWorldExporter {
             stats.put(selectedDimension, exportDimension(worldDir, world.getDimension(new Anchor(selectedDimension, DETAIL, false, 0)), world.getPlatform(), progressReceiver));
         }
 
+        CubicChunkStore.logAndResetCubeCacheStats();
+        CubicChunkStore.logAndResetMemoryStats();
+
         // Update the session.lock file, hopefully kicking out any Minecraft instances which may have tried to open the
         // map in the mean time:
         File sessionLockFile = new File(worldDir, "session.lock");
@@ -239,6 +243,10 @@ public class CubicChunksWorldExporter extends AbstractWorldExporter {
 
         ChunkFactory.Stats collectedStats = parallelExportRegions(dimension, worldDir, progressReceiver);
 
+        if (CubicLightEngine.ENABLED) {
+            relight(dimensionDir);
+        }
+
         // Calculate total size of dimension
         Set<Point> regions = new HashSet<>(), exportedRegions = new HashSet<>();
         if (worldExportSettings.getTilesToExport() != null) {
@@ -275,6 +283,24 @@ public class CubicChunksWorldExporter extends AbstractWorldExporter {
         return collectedStats;
     }
 
+    private void relight(File dimensionDir) throws IOException {
+        CubicChunkStore store = new CubicChunkStore(dimensionDir, 0, Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 2);
+        try {
+            Collection<MinecraftCoords> columns = store.getChunkCoords();
+            Set<Point> selectedTiles = worldExportSettings.getTilesToExport();
+            if (selectedTiles != null) {
+                // a tile is 8x8 columns
+                columns = new ArrayList<>();
+                for (Point tile : selectedTiles) {
+                    columns.addAll(store.getChunkCoords(tile.x << 3, tile.y << 3, (tile.x << 3) + 7, (tile.y << 3) + 7));
+                }
+            }
+            CubicLightEngine.relight(store, columns);
+        } finally {
+            store.close();
+        }
+    }
+
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CubicChunksWorldExporter.class);
     private static final String DEFAULT_GENERATOR_OPTIONS = "village,mineshaft(chance=0.01),stronghold(distance=32 count=3 spread=3),biome_1(distance=32),dungeon,decoration,lake,lava_lake,oceanmonument(spacing=32 separation=5)";
 }
\ No newline at end of file
@@ -0,0 +1,552 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.LongArrayDeque;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.ObjectIdentityHashSet;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import org.pepsoft.minecraft.MinecraftCoords;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Calculates sky light and block light of cubic chunks worlds after export, so that the server doesn't need to relight
+ * them. Works on whole cubes instead of going through the per-block light setters of WorldPainter.
+ *
+ * <p>The world is split into square areas of columns, each lit by a separate task on a fork-join pool. Light never
+ * travels more than 15 blocks, so a task also loads a border of one column around its area, and only saves columns in
+ * the area itself. Areas next to each other are never processed at the same time, so a task never reads columns that
+ * another task is writing. Fully decoded areas can be large in tall worlds, so how many areas are loaded at the same
+ * time is also limited by the {@link MemoryBudget}.
+ *
+ * <p>After edits of existing worlds, light can also be updated only in the changed cubes and the cubes around them.
+ *
+ * <p>Enabled with <code>-Dcubicchunks.lightEngine=true</code>, in which case light is not precalculated by WorldPainter.
+ */
+final class CubicLightEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("CubicLightEngine");
+
+    static final boolean ENABLED = Boolean.getBoolean("cubicchunks.lightEngine");
+
+    // size of an area lit by one task, in columns
+    private static final int AREA_SIZE = 16;
+    private static final int BORDER = 1;
+    private static final int LOADED_SIZE = AREA_SIZE + BORDER * 2;
+    private static final int LOADED_BLOCKS = LOADED_SIZE * Coords.CUBE_SIZE;
+
+    private final CubicChunkStore store;
+    // column coordinates of the first loaded column
+    private final int originX, originZ;
+    private final Chunk16Virtual[] columns = new Chunk16Virtual[LOADED_SIZE * LOADED_SIZE];
+    // Y of the highest block that reduces sky light, for each x/z of loaded columns
+    private final int[] skyTops = new int[LOADED_BLOCKS * LOADED_BLOCKS];
+    private final int[] columnLight = new int[Coords.CUBE_SIZE * Coords.CUBE_SIZE];
+    // cubes to calculate light of, null to calculate it everywhere
+    private ObjectIdentityHashSet<Chunk16Virtual.Cube16> targets;
+    // positions of blocks to spread light from, see pack()
+    private final LongArrayDeque queue = new LongArrayDeque(4096);
+
+    private CubicLightEngine(CubicChunkStore store, int areaX, int areaZ) {
+        this.store = store;
+        this.originX = areaX * AREA_SIZE - BORDER;
+        this.originZ = areaZ * AREA_SIZE - BORDER;
+    }
+
+    /**
+     * Calculates light of the specified columns, and saves them with light marked as done.
+     *
+     * @param store the store to read and write columns
+     * @param toLight the columns to light
+     */
+    static void relight(CubicChunkStore store, Collection<MinecraftCoords> toLight) {
+        Map<MinecraftCoords, IntHashSet> columns = new HashMap<>();
+        for (MinecraftCoords pos : toLight) {
+            columns.put(pos, null);
+        }
+        long start = System.currentTimeMillis();
+        run(store, columns, false);
+        LOGGER.info("Calculated light of " + toLight.size() + " columns in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Calculates light again only in the specified cubes and the cubes around them, assuming that light everywhere
+     * else is still correct. Changes of sky light that reach further than one cube from the changed blocks are not
+     * visible until the server relights these blocks.
+     *
+     * @param store the store to read and write columns
+     * @param changedCubes Y positions of cubes with changed blocks, by column
+     */
+    static void relightChangedCubes(CubicChunkStore store, Map<MinecraftCoords, IntArrayList> changedCubes) {
+        Map<MinecraftCoords, IntHashSet> columns = new HashMap<>();
+        int cubeCount = 0;
+        for (Map.Entry<MinecraftCoords, IntArrayList> entry : changedCubes.entrySet()) {
+            MinecraftCoords pos = entry.getKey();
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    IntHashSet cubeYs = columns.computeIfAbsent(new MinecraftCoords(pos.x + dx, pos.z + dz), p -> new IntHashSet());
+                    for (IntCursor y : entry.getValue()) {
+                        cubeYs.addAll(y.value - 1, y.value, y.value + 1);
+                    }
+                }
+            }
+            cubeCount += entry.getValue().size();
+        }
+        if (columns.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        run(store, columns, true);
+        LOGGER.info("Updated light around " + cubeCount + " changed cubes in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static void run(CubicChunkStore store, Map<MinecraftCoords, IntHashSet> columns, boolean incremental) {
+        LongObjectHashMap<Map<MinecraftCoords, IntHashSet>> areas = new LongObjectHashMap<>();
+        for (Map.Entry<MinecraftCoords, IntHashSet> entry : columns.entrySet()) {
+            MinecraftCoords pos = entry.getKey();
+            long key = areaKey(Math.floorDiv(pos.x, AREA_SIZE), Math.floorDiv(pos.z, AREA_SIZE));
+            Map<MinecraftCoords, IntHashSet> area = areas.get(key);
+            if (area == null) {
+                areas.put(key, area = new HashMap<>());
+            }
+            area.put(pos, entry.getValue());
+        }
+        MemoryGate gate = new MemoryGate();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // 4 passes, with areas where both coordinates differ by 2, so that neighbors never run at the same time
+            for (int pass = 0; pass < 4; pass++) {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (LongObjectCursor<Map<MinecraftCoords, IntHashSet>> area : areas) {
+                    int areaX = (int) (area.key >> 32);
+                    int areaZ = (int) area.key;
+                    if (((areaX & 1) | (areaZ & 1) << 1) != pass) {
+                        continue;
+                    }
+                    Map<MinecraftCoords, IntHashSet> areaColumns = area.value;
+                    tasks.add(pool.submit(() -> new CubicLightEngine(store, areaX, areaZ).light(areaColumns, incremental, gate)));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long areaKey(int areaX, int areaZ) {
+        return (long) areaX << 32 | (areaZ & 0xFFFFFFFFL);
+    }
+
+    private void light(Map<MinecraftCoords, IntHashSet> toSave, boolean incremental, MemoryGate gate) {
+        int columnCount = 0;
+        for (int dz = 0; dz < LOADED_SIZE; dz++) {
+            for (int dx = 0; dx < LOADED_SIZE; dx++) {
+                if (store.isChunkPresent(originX + dx, originZ + dz)) {
+                    columnCount++;
+                }
+            }
+        }
+        long reserved = gate.acquire(columnCount);
+        long bytes = 0;
+        try {
+            lightArea(toSave, incremental);
+            for (Chunk16Virtual column : columns) {
+                if (column != null) {
+                    bytes += column.estimatedBytes();
+                }
+            }
+        } finally {
+            Arrays.fill(columns, null);
+            gate.release(reserved, bytes == 0 ? 0 : columnCount, bytes);
+        }
+    }
+
+    private void lightArea(Map<MinecraftCoords, IntHashSet> toSave, boolean incremental) {
+        for (int dz = 0; dz < LOADED_SIZE; dz++) {
+            for (int dx = 0; dx < LOADED_SIZE; dx++) {
+                // light of border columns is only read, they are saved by the task of their own area
+                columns[dx + dz * LOADED_SIZE] = store.loadChunkUncached(originX + dx, originZ + dz, EditMode.EDITABLE);
+            }
+        }
+        if (incremental) {
+            targets = new ObjectIdentityHashSet<>();
+            for (Map.Entry<MinecraftCoords, IntHashSet> entry : toSave.entrySet()) {
+                Chunk16Virtual column = getColumn(entry.getKey());
+                if (column == null) {
+                    continue;
+                }
+                for (IntCursor y : entry.getValue()) {
+                    Chunk16Virtual.Cube16 cube = column.getCube(y.value);
+                    if (cube != null) {
+                        targets.add(cube);
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(skyTops, Coords.NO_HEIGHT);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != null && (!incremental || toSave.containsKey(columns[i].getCoords()))) {
+                initSkyLight(columns[i], (i % LOADED_SIZE) * Coords.CUBE_SIZE, (i / LOADED_SIZE) * Coords.CUBE_SIZE);
+            }
+        }
+        if (incremental) {
+            seedTargets(true);
+        } else {
+            seedSkyLightEdges();
+        }
+        propagate(true);
+
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != null && (!incremental || toSave.containsKey(columns[i].getCoords()))) {
+                initBlockLight(columns[i], (i % LOADED_SIZE) * Coords.CUBE_SIZE, (i / LOADED_SIZE) * Coords.CUBE_SIZE);
+            }
+        }
+        if (incremental) {
+            seedTargets(false);
+        }
+        propagate(false);
+
+        for (MinecraftCoords pos : toSave.keySet()) {
+            Chunk16Virtual column = getColumn(pos);
+            if (column == null) {
+                continue;
+            }
+            if (!incremental) {
+                column.setLightPopulated(true);
+            }
+            store.saveChunk(column);
+        }
+    }
+
+    /**
+     * Limits how many areas are loaded at the same time by the memory budget. Memory of an area is estimated from the
+     * size of columns of areas lit so far, so until the first one is done, areas are loaded one at a time. One area is
+     * always allowed, so that light is calculated even if the budget is too small for a single area.
+     */
+    private static final class MemoryGate {
+        private int running;
+        private long measuredColumns, measuredBytes;
+
+        /**
+         * Waits until there is enough memory to load an area.
+         *
+         * @param columnCount the amount of existing columns in the area
+         *
+         * @return the amount of memory reserved for the area
+         */
+        synchronized long acquire(int columnCount) {
+            while (true) {
+                long estimate = measuredColumns == 0 ? 0 : measuredBytes / measuredColumns * columnCount;
+                if (running == 0) {
+                    running++;
+                    return MemoryBudget.GLOBAL.tryReserve(estimate) ? estimate : 0;
+                }
+                if (measuredColumns > 0 && MemoryBudget.GLOBAL.tryReserve(estimate)) {
+                    running++;
+                    return estimate;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for memory to calculate light", e);
+                }
+            }
+        }
+
+        /**
+         * @param reserved the amount of memory returned by {@link #acquire(int)}
+         * @param columnCount the amount of columns of the area, or 0 if it wasn't lit
+         * @param bytes estimated size of the columns of the area once lit
+         */
+        synchronized void release(long reserved, int columnCount, long bytes) {
+            MemoryBudget.GLOBAL.release(reserved);
+            running--;
+            measuredColumns += columnCount;
+            measuredBytes += bytes;
+            notifyAll();
+        }
+    }
+
+    private Chunk16Virtual getColumn(MinecraftCoords pos) {
+        return columns[(pos.x - originX) + (pos.z - originZ) * LOADED_SIZE];
+    }
+
+    private boolean isTarget(Chunk16Virtual.Cube16 cube) {
+        return targets == null || targets.contains(cube);
+    }
+
+    /**
+     * Sets light coming straight down from the sky, top to bottom. Blocks with partial light can spread it
+     * sideways, and are added to the queue.
+     */
+    private void initSkyLight(Chunk16Virtual column, int baseX, int baseZ) {
+        int[] light = columnLight;
+        Arrays.fill(light, 15);
+        int fullCount = light.length;
+        int litCount = light.length;
+        Chunk16Virtual.Cube16[] cubes = column.getCubes();
+        for (int i = cubes.length - 1; i >= 0; i--) {
+            Chunk16Virtual.Cube16 cube = cubes[i];
+            if (cube == null) {
+                continue;
+            }
+            if (!isTarget(cube)) {
+                // light below cubes that are kept as they are continues from their bottom layer
+                int minY = Coords.cubeToMinBlock(cube.getY());
+                fullCount = litCount = 0;
+                for (int j = 0; j < light.length; j++) {
+                    light[j] = cube.getSkyLight(Coords.index2dToX(j), minY, Coords.index2dToZ(j));
+                    if (light[j] == 15) {
+                        fullCount++;
+                    }
+                    if (light[j] > 0) {
+                        litCount++;
+                    }
+                }
+                continue;
+            }
+            int maxY = Coords.cubeToMaxBlock(cube.getY());
+            if (litCount == 0) {
+                cube.fillSkyLight(0);
+                continue;
+            }
+            if (fullCount == light.length && cube.isEmpty()) {
+                cube.fillSkyLight(15);
+                continue;
+            }
+            if (cube.isFullyOpaque()) {
+                cube.fillSkyLight(0);
+                for (int j = 0; j < light.length; j++) {
+                    if (light[j] == 15) {
+                        skyTops[(baseX + Coords.index2dToX(j)) + (baseZ + Coords.index2dToZ(j)) * LOADED_BLOCKS] = maxY;
+                    }
+                    light[j] = 0;
+                }
+                fullCount = litCount = 0;
+                continue;
+            }
+            for (int y = maxY; y > maxY - Coords.CUBE_SIZE; y--) {
+                for (int z = 0; z < Coords.CUBE_SIZE; z++) {
+                    for (int x = 0; x < Coords.CUBE_SIZE; x++) {
+                        int j = x | z << 4;
+                        int level = light[j];
+                        if (level > 0) {
+                            int opacity = cube.getMaterial(x, y, z).opacity;
+                            if (level < 15 || opacity > 0) {
+                                if (level == 15) {
+                                    fullCount--;
+                                    skyTops[(baseX + x) + (baseZ + z) * LOADED_BLOCKS] = y;
+                                }
+                                level = Math.max(0, level - Math.max(1, opacity));
+                                if (level == 0) {
+                                    litCount--;
+                                } else if (level > 1) {
+                                    queue.addLast(pack(baseX + x, y, baseZ + z));
+                                }
+                                light[j] = level;
+                            }
+                        }
+                        cube.setSkyLight(x, y, z, level);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds full sky light blocks next to columns where sky light starts lower down to the queue. These are the
+     * only full sky light blocks that can spread light anywhere.
+     */
+    private void seedSkyLightEdges() {
+        for (int z = 0; z < LOADED_BLOCKS; z++) {
+            for (int x = 0; x < LOADED_BLOCKS; x++) {
+                Chunk16Virtual column = columns[(x >> 4) + (z >> 4) * LOADED_SIZE];
+                if (column == null) {
+                    continue;
+                }
+                int top = skyTops[x + z * LOADED_BLOCKS];
+                int maxNeighborTop = Math.max(
+                        Math.max(getSkyTop(x - 1, z), getSkyTop(x + 1, z)),
+                        Math.max(getSkyTop(x, z - 1), getSkyTop(x, z + 1)));
+                if (maxNeighborTop <= top) {
+                    continue;
+                }
+                for (Chunk16Virtual.Cube16 cube : column.getCubes()) {
+                    if (cube == null) {
+                        continue;
+                    }
+                    int minY = Math.max(top + 1, Coords.cubeToMinBlock(cube.getY()));
+                    int maxY = Math.min(maxNeighborTop, Coords.cubeToMaxBlock(cube.getY()));
+                    for (int y = minY; y <= maxY; y++) {
+                        queue.addLast(pack(x, y, z));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds lit blocks next to cubes being relit to the queue, so that light from cubes that are kept as they are
+     * spreads into them. Full sky light blocks inside of these cubes are also added, as there are no sky tops to
+     * find the ones that matter.
+     */
+    private void seedTargets(boolean sky) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                continue;
+            }
+            int baseX = (i % LOADED_SIZE) * Coords.CUBE_SIZE;
+            int baseZ = (i / LOADED_SIZE) * Coords.CUBE_SIZE;
+            for (Chunk16Virtual.Cube16 cube : columns[i].getCubes()) {
+                if (cube == null) {
+                    continue;
+                }
+                if (!targets.contains(cube)) {
+                    continue;
+                }
+                int minY = Coords.cubeToMinBlock(cube.getY());
+                if (sky) {
+                    for (int y = minY; y < minY + Coords.CUBE_SIZE; y++) {
+                        for (int z = 0; z < Coords.CUBE_SIZE; z++) {
+                            for (int x = 0; x < Coords.CUBE_SIZE; x++) {
+                                if (cube.getSkyLight(x, y, z) == 15) {
+                                    queue.addLast(pack(baseX + x, y, baseZ + z));
+                                }
+                            }
+                        }
+                    }
+                }
+                for (int a = 0; a < Coords.CUBE_SIZE; a++) {
+                    for (int b = 0; b < Coords.CUBE_SIZE; b++) {
+                        seedOutside(baseX - 1, minY + a, baseZ + b, sky);
+                        seedOutside(baseX + Coords.CUBE_SIZE, minY + a, baseZ + b, sky);
+                        seedOutside(baseX + a, minY - 1, baseZ + b, sky);
+                        seedOutside(baseX + a, minY + Coords.CUBE_SIZE, baseZ + b, sky);
+                        seedOutside(baseX + a, minY + b, baseZ - 1, sky);
+                        seedOutside(baseX + a, minY + b, baseZ + Coords.CUBE_SIZE, sky);
+                    }
+                }
+            }
+        }
+    }
+
+    private void seedOutside(int x, int y, int z, boolean sky) {
+        Chunk16Virtual.Cube16 cube = getCube(x, y, z);
+        if (cube != null && !targets.contains(cube) && getLight(cube, x, y, z, sky) > 1) {
+            queue.addLast(pack(x, y, z));
+        }
+    }
+
+    private int getSkyTop(int x, int z) {
+        if (x < 0 || z < 0 || x >= LOADED_BLOCKS || z >= LOADED_BLOCKS) {
+            return Coords.NO_HEIGHT;
+        }
+        return skyTops[x + z * LOADED_BLOCKS];
+    }
+
+    /**
+     * Clears block light, and adds all light emitting blocks to the queue
+     */
+    private void initBlockLight(Chunk16Virtual column, int baseX, int baseZ) {
+        for (Chunk16Virtual.Cube16 cube : column.getCubes()) {
+            if (cube == null) {
+                continue;
+            }
+            if (!isTarget(cube)) {
+                continue;
+            }
+            cube.fillBlockLight(0);
+            if (cube.getMaxLightEmission() == 0) {
+                continue;
+            }
+            int minY = Coords.cubeToMinBlock(cube.getY());
+            for (int y = minY; y < minY + Coords.CUBE_SIZE; y++) {
+                for (int z = 0; z < Coords.CUBE_SIZE; z++) {
+                    for (int x = 0; x < Coords.CUBE_SIZE; x++) {
+                        int emitted = cube.getMaterial(x, y, z).blockLight;
+                        if (emitted > 0) {
+                            cube.setBlockLight(x, y, z, emitted);
+                            if (emitted > 1) {
+                                queue.addLast(pack(baseX + x, y, baseZ + z));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Spreads light from all blocks in the queue, until no more blocks change
+     */
+    private void propagate(boolean sky) {
+        while (!queue.isEmpty()) {
+            long pos = queue.removeFirst();
+            int x = (int) (pos >>> 16) & 0xFFFF;
+            int y = (int) (pos >> 32);
+            int z = (int) pos & 0xFFFF;
+            Chunk16Virtual.Cube16 cube = getCube(x, y, z);
+            int level = getLight(cube, x, y, z, sky);
+            if (level <= 1) {
+                continue;
+            }
+            spread(x - 1, y, z, level, sky);
+            spread(x + 1, y, z, level, sky);
+            spread(x, y - 1, z, level, sky);
+            spread(x, y + 1, z, level, sky);
+            spread(x, y, z - 1, level, sky);
+            spread(x, y, z + 1, level, sky);
+        }
+    }
+
+    private void spread(int x, int y, int z, int fromLevel, boolean sky) {
+        Chunk16Virtual.Cube16 cube = getCube(x, y, z);
+        if (cube == null || !isTarget(cube)) {
+            return;
+        }
+        int level = fromLevel - Math.max(1, cube.getMaterial(x, y, z).opacity);
+        if (level <= getLight(cube, x, y, z, sky)) {
+            return;
+        }
+        if (sky) {
+            cube.setSkyLight(x, y, z, level);
+        } else {
+            cube.setBlockLight(x, y, z, level);
+        }
+        if (level > 1) {
+            queue.addLast(pack(x, y, z));
+        }
+    }
+
+    private static int getLight(Chunk16Virtual.Cube16 cube, int x, int y, int z, boolean sky) {
+        return sky ? cube.getSkyLight(x, y, z) : cube.getBlockLight(x, y, z);
+    }
+
+    private Chunk16Virtual.Cube16 getCube(int x, int y, int z) {
+        if (x < 0 || z < 0 || x >= LOADED_BLOCKS || z >= LOADED_BLOCKS) {
+            return null;
+        }
+        Chunk16Virtual column = columns[(x >> 4) + (z >> 4) * LOADED_SIZE];
+        return column == null ? null : column.getCube(Coords.blockToCube(y));
+    }
+
+    // x and z are relative to the first loaded column
+    private static long pack(int x, int y, int z) {
+        return (long) y << 32 | x << 16 | z;
+    }
+}
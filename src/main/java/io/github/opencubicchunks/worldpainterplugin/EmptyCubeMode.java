@@ -0,0 +1,20 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+/**
+ * When to write empty cubes at cube Y 0-15 that don't exist in a column. Without them, the Cubic Chunks world
+ * generator will generate terrain there.
+ */
+public enum EmptyCubeMode {
+    /**
+     * Always write all missing cubes
+     */
+    ALWAYS,
+    /**
+     * Write only the missing cubes that are above the lowest non-empty cube of the column
+     */
+    CONTENT_BELOW,
+    /**
+     * Never write cubes that don't exist
+     */
+    NEVER
+}
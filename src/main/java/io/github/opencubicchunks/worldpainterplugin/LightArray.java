@@ -0,0 +1,201 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import java.util.Arrays;
+
+/**
+ * Light values of a single cube. Doesn't allocate the full nibble array as long as the cube has only one or two
+ * different light values, which is the case for most cubes that are fully in the sky or fully underground.
+ *
+ * <p>Storage goes through 3 states:
+ * <ul>
+ *     <li>uniform - all values are equal to the base value</li>
+ *     <li>two values - a bitmap marks blocks that have a different value, if the bitmap becomes full or empty, goes
+ *     back to uniform</li>
+ *     <li>full - a regular 2048 byte nibble array</li>
+ * </ul>
+ */
+final class LightArray {
+
+    private static final int BLOCK_COUNT = Coords.CUBE_SIZE * Coords.CUBE_SIZE * Coords.CUBE_SIZE;
+    // shared read-only nibble arrays filled with the value at the index, used when writing uniform light to disk
+    private static final byte[][] UNIFORM_ARRAYS = new byte[16][];
+
+    static {
+        for (int i = 0; i < UNIFORM_ARRAYS.length; i++) {
+            UNIFORM_ARRAYS[i] = new byte[BLOCK_COUNT >> 1];
+            Arrays.fill(UNIFORM_ARRAYS[i], (byte) (i | i << 4));
+        }
+    }
+
+    private int baseValue;
+    private int otherValue;
+    // bits set for blocks with otherValue, null when uniform or full
+    private long[] otherMask;
+    private int otherCount;
+    // the full nibble array, null when uniform or two values
+    private byte[] data;
+    // data is also referenced by NBT data, it's copied before it's changed
+    private boolean dataShared;
+
+    LightArray(int value) {
+        this.baseValue = value;
+    }
+
+    /**
+     * Creates light storage from nibble array read from disk
+     *
+     * @param array the nibble array, may be null. It's kept as it is, and copied when the light is first changed
+     * @param def the value used when array is null
+     *
+     * @return new light storage, uniform if all values in the array are equal
+     */
+    static LightArray fromArray(byte[] array, int def) {
+        if (array == null) {
+            return new LightArray(def);
+        }
+        LightArray light = new LightArray(array[0] & 0xF);
+        if (!isUniform(array)) {
+            light.data = array;
+            light.dataShared = true;
+        }
+        return light;
+    }
+
+    private static boolean isUniform(byte[] array) {
+        byte first = array[0];
+        if (((first >> 4) & 0xF) != (first & 0xF)) {
+            return false;
+        }
+        for (byte b : array) {
+            if (b != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isUniform() {
+        return data == null && otherMask == null;
+    }
+
+    /**
+     * @return the value of all blocks, only valid when {@link #isUniform()} is true
+     */
+    int getUniformValue() {
+        return baseValue;
+    }
+
+    int get(int idx) {
+        if (data != null) {
+            byte dataByte = data[idx >> 1];
+            // Even byte -> least significant bits
+            // Odd byte -> most significant bits
+            return (idx & 1) == 0 ? dataByte & 0x0F : (dataByte & 0xF0) >> 4;
+        }
+        if (otherMask != null && (otherMask[idx >>> 6] & (1L << idx)) != 0) {
+            return otherValue;
+        }
+        return baseValue;
+    }
+
+    void set(int idx, int val) {
+        val &= 0xF;
+        if (data != null) {
+            if (dataShared) {
+                data = data.clone();
+                dataShared = false;
+            }
+            setNibble(data, idx, val);
+            return;
+        }
+        if (otherMask == null) {
+            if (val == baseValue) {
+                return;
+            }
+            otherMask = new long[BLOCK_COUNT >> 6];
+            otherValue = val;
+            otherCount = 0;
+        }
+        long bit = 1L << idx;
+        boolean isOther = (otherMask[idx >>> 6] & bit) != 0;
+        if (val == otherValue) {
+            if (!isOther) {
+                otherMask[idx >>> 6] |= bit;
+                if (++otherCount == BLOCK_COUNT) {
+                    baseValue = otherValue;
+                    otherMask = null;
+                }
+            }
+        } else if (val == baseValue) {
+            if (isOther) {
+                otherMask[idx >>> 6] &= ~bit;
+                if (--otherCount == 0) {
+                    otherMask = null;
+                }
+            }
+        } else {
+            data = toNewArray();
+            dataShared = false;
+            otherMask = null;
+            setNibble(data, idx, val);
+        }
+    }
+
+    void fill(int val) {
+        baseValue = val & 0xF;
+        otherMask = null;
+        data = null;
+        dataShared = false;
+    }
+
+    /**
+     * @return rough amount of heap memory used, including a full nibble array even if it's shared with NBT data
+     */
+    long estimatedBytes() {
+        long bytes = 40;
+        if (otherMask != null) {
+            bytes += 16 + otherMask.length * (long) Long.BYTES;
+        }
+        if (data != null) {
+            bytes += 16 + data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return nibble array with the light values. May be a shared array, and must not be modified. Later changes of
+     * the light values don't change it
+     */
+    byte[] toArray() {
+        if (data != null) {
+            dataShared = true;
+            return data;
+        }
+        if (otherMask == null) {
+            return UNIFORM_ARRAYS[baseValue];
+        }
+        return toNewArray();
+    }
+
+    private byte[] toNewArray() {
+        byte[] array = UNIFORM_ARRAYS[baseValue].clone();
+        if (otherMask != null) {
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                if ((otherMask[i >>> 6] & (1L << i)) != 0) {
+                    setNibble(array, i, otherValue);
+                }
+            }
+        }
+        return array;
+    }
+
+    private static void setNibble(byte[] array, int idx, int val) {
+        int offset = idx >> 1;
+        byte dataByte = array[offset];
+        // Even byte -> least significant bits
+        // Odd byte -> most significant bits
+        array[offset] = (idx & 1) == 0 ?
+                (byte) ((dataByte & 0xF0) | (val & 0x0F)) :
+                (byte) ((dataByte & 0x0F) | ((val & 0x0F) << 4));
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Heap memory budget for decoded columns. Columns are counted while a chunk store holds them, like cached or prefetched
+ * columns, columns given to chunk visitors and areas of the light engine. Cached cube templates are counted too.
+ * Holders of memory that can be freed register a {@link Reclaimer}, which is asked to free memory when loading a
+ * column needs more than is left. Sizes of columns come from {@link Chunk16Virtual#estimatedBytes()}. Thread safe.
+ *
+ * <p>Columns returned by {@link CubicChunkStore#getChunk(int, int)} and
+ * {@link CubicChunkStore#loadChunk(int, int, EditMode)} belong to the caller, and WorldPainter never hands them back,
+ * so outside of the column cache they are not counted and their loading is not bounded. Loading them only asks
+ * reclaimers to make room.
+ *
+ * <p>The global budget is set with <code>-Dcubicchunks.memoryBudgetMB</code>, by default it's a quarter of the
+ * maximum heap size.
+ */
+final class MemoryBudget {
+
+    static final MemoryBudget GLOBAL = new MemoryBudget(Long.getLong("cubicchunks.memoryBudgetMB",
+            Runtime.getRuntime().maxMemory() / 4 >> 20) << 20);
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+    private final List<Reclaimer> reclaimers = new CopyOnWriteArrayList<>();
+
+    private final LongAccumulator peakUsed = new LongAccumulator(Math::max, 0);
+    private final LongAdder loadedColumns = new LongAdder();
+    private final LongAdder loadedBytes = new LongAdder();
+    private final LongAccumulator largestColumn = new LongAccumulator(Math::max, 0);
+    private final LongAdder refused = new LongAdder();
+
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Frees memory held for a budget. It's called on the thread that needs the memory, which is not necessarily the
+     * one using the held memory, so it may free less than asked for and do the rest later.
+     */
+    interface Reclaimer {
+        /**
+         * @param bytes the amount of memory that is needed
+         *
+         * @return the amount of memory released, may be less than requested
+         */
+        long reclaim(long bytes);
+    }
+
+    void addReclaimer(Reclaimer reclaimer) {
+        reclaimers.add(reclaimer);
+    }
+
+    void removeReclaimer(Reclaimer reclaimer) {
+        reclaimers.remove(reclaimer);
+    }
+
+    /**
+     * Reserves memory for something that is kept, asking reclaimers to free memory if needed.
+     *
+     * @param bytes the amount of memory
+     *
+     * @return true if the memory was reserved, false if the budget doesn't have enough memory left
+     */
+    boolean tryReserve(long bytes) {
+        if (!makeRoom(bytes)) {
+            refused.increment();
+            return false;
+        }
+        peakUsed.accumulate(used.addAndGet(bytes));
+        return true;
+    }
+
+    /**
+     * Reserves memory only if it's free without reclaiming anything, for memory that is nice to have, like cached cube
+     * templates.
+     *
+     * @param bytes the amount of memory
+     *
+     * @return true if the memory was reserved
+     */
+    boolean tryReserveFree(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        peakUsed.accumulate(current + bytes);
+        return true;
+    }
+
+    /**
+     * Reserves memory that is needed no matter what, like a column a visitor is working on. Reclaimers are asked to
+     * make room, and if that's not enough, the budget is overdrawn, so that other reservations are refused until the
+     * memory is released.
+     *
+     * @param bytes the amount of memory
+     */
+    void reserve(long bytes) {
+        makeRoom(bytes);
+        peakUsed.accumulate(used.addAndGet(bytes));
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Records a column loaded by a chunk store, and makes room for it in the budget if memory held by reclaimers
+     * would leave too little for it. The column itself is not counted as used, the caller owns it.
+     *
+     * @param bytes estimated size of the column
+     */
+    void onColumnLoaded(long bytes) {
+        loadedColumns.increment();
+        loadedBytes.add(bytes);
+        largestColumn.accumulate(bytes);
+        makeRoom(bytes);
+    }
+
+    private boolean makeRoom(long bytes) {
+        long missing = used.get() + bytes - limit;
+        for (Reclaimer reclaimer : reclaimers) {
+            if (missing <= 0) {
+                break;
+            }
+            missing -= reclaimer.reclaim(missing);
+        }
+        return missing <= 0;
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return summary of memory currently held, the peak, and sizes of loaded columns since the last reset
+     */
+    String getStats() {
+        long columns = loadedColumns.sum();
+        return String.format("%d/%d MiB of memory budget used (peak %d MiB), %d reservations refused, "
+                        + "%d columns loaded, average %d KiB, largest %d KiB",
+                used.get() >> 20, limit >> 20, peakUsed.get() >> 20, refused.sum(),
+                columns, columns == 0 ? 0 : (loadedBytes.sum() / columns) >> 10, largestColumn.get() >> 10);
+    }
+
+    void resetStats() {
+        peakUsed.reset();
+        peakUsed.accumulate(used.get());
+        loadedColumns.reset();
+        loadedBytes.reset();
+        largestColumn.reset();
+        refused.reset();
+    }
+}
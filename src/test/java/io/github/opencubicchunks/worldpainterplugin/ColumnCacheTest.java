@@ -0,0 +1,68 @@
+package io.github.opencubicchunks.worldpainterplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnCacheTest {
+
+    @Test
+    public void prefetchedColumnIsDroppedWhenSavedWhileLoading() throws InterruptedException {
+        // the column as it is in the store
+        AtomicReference<Chunk16Virtual> stored = new AtomicReference<>(newColumn());
+        ColumnCache cache = new ColumnCache(16, stored::set);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch saved = new CountDownLatch(1);
+        ColumnPrefetcher prefetcher = new ColumnPrefetcher(cache, (x, z) -> {
+            Chunk16Virtual column = stored.get();
+            reading.countDown();
+            try {
+                saved.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return column;
+        });
+        try {
+            prefetcher.prefetch(0, 0);
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            Chunk16Virtual newer = newColumn();
+            cache.writeThrough(0, 0, () -> stored.set(newer));
+            saved.countDown();
+            prefetcher.stop();
+
+            assertFalse(cache.contains(0, 0));
+            assertSame(newer, stored.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void prefetchedColumnIsCachedWithoutSaves() throws InterruptedException {
+        Chunk16Virtual column = newColumn();
+        ColumnCache cache = new ColumnCache(16, c -> {
+            throw new AssertionError("nothing should be written");
+        });
+        ColumnPrefetcher prefetcher = new ColumnPrefetcher(cache, (x, z) -> column);
+        try {
+            prefetcher.prefetch(0, 0);
+            prefetcher.stop();
+
+            assertSame(column, cache.get(0, 0));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static Chunk16Virtual newColumn() {
+        return new Chunk16Virtual(0, 0, 0, 256, EditMode.EDITABLE);
+    }
+}